@@ -0,0 +1,215 @@
+package com.example.smartwattv2;
+
+/**
+ * Client-side energy integrator that cross-checks the meter's cumulative counter.
+ *
+ * Every sample integrates power over the elapsed time (trapezoidal rule, double
+ * precision) and compares the result with the change in the device counter.
+ * The counter is preferred while it agrees, since its deltas telescope without
+ * drift; the integrated value bridges counter resets, wraparound and implausible
+ * jumps, and the counter bridges sampling gaps where power is unknown.
+ *
+ * The reconciled energy continues from the first counter reading, so it stays
+ * comparable with the meter while never moving backwards. update() is O(1) and
+ * does not allocate.
+ */
+public class EnergyIntegrator {
+
+    // Flags returned by update()
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_FIRST = 1;
+    public static final int STATUS_GAP = 1 << 1;
+    public static final int STATUS_RESET = 1 << 2;
+    public static final int STATUS_WRAP = 1 << 3;
+    public static final int STATUS_MISMATCH = 1 << 4;
+    public static final int STATUS_REJECTED = 1 << 5;
+
+    private static final double MS_PER_HOUR = 3_600_000.0;
+    private static final double RELATIVE_TOLERANCE = 0.25;
+
+    private final long gapThresholdMs;
+    private final double counterResolutionKwh;
+    private final double counterModulusKwh;
+    private final double maxPowerKw;
+
+    private boolean started;
+    private long lastTimestampMs;
+    private double lastPowerKw;
+    private double lastCounterKwh;
+
+    private double energyKwh;
+    private double integratedKwh;
+    private double lastDeltaKwh;
+    private int gapCount, resetCount, wrapCount, mismatchCount;
+
+    /**
+     * @param nominalIntervalMs    expected time between samples
+     * @param counterResolutionKwh smallest step the meter reports (e.g. 0.01 for two decimals)
+     * @param counterModulusKwh    value at which the counter wraps to zero, or 0 if it never wraps
+     * @param maxPowerKw           highest plausible load, used to reject garbage counter jumps
+     */
+    public EnergyIntegrator(long nominalIntervalMs, double counterResolutionKwh,
+                            double counterModulusKwh, double maxPowerKw) {
+        this.gapThresholdMs = Math.max(3 * nominalIntervalMs, nominalIntervalMs + 2000);
+        this.counterResolutionKwh = counterResolutionKwh;
+        this.counterModulusKwh = counterModulusKwh;
+        this.maxPowerKw = maxPowerKw;
+    }
+
+    /**
+     * Adds one sample and returns a combination of STATUS_* flags.
+     *
+     * @param timestampMs monotonic time of the sample
+     * @param powerKw     instantaneous power
+     * @param counterKwh  cumulative energy reported by the meter
+     */
+    public int update(long timestampMs, double powerKw, double counterKwh) {
+        lastDeltaKwh = 0;
+        if (Double.isNaN(powerKw) || Double.isInfinite(powerKw) || powerKw < 0
+                || Double.isNaN(counterKwh) || Double.isInfinite(counterKwh) || counterKwh < 0) {
+            return STATUS_REJECTED;
+        }
+
+        if (!started) {
+            started = true;
+            lastTimestampMs = timestampMs;
+            lastPowerKw = powerKw;
+            lastCounterKwh = counterKwh;
+            energyKwh = counterKwh;
+            return STATUS_FIRST;
+        }
+
+        long dt = timestampMs - lastTimestampMs;
+        if (dt <= 0) {
+            // Duplicate or out-of-order sample
+            return STATUS_REJECTED;
+        }
+
+        int status = STATUS_OK;
+        double hours = dt / MS_PER_HOUR;
+        double integratedDelta = (lastPowerKw + powerKw) * 0.5 * hours;
+        double maxDelta = maxPowerKw * hours;
+
+        // Quantisation of the counter: reporting resolution plus float rounding on the device
+        double rounding = 2 * Math.ulp((float) Math.max(counterKwh, lastCounterKwh));
+        double tolerance = 2 * counterResolutionKwh + rounding + RELATIVE_TOLERANCE * integratedDelta;
+        // The counter can only seem to step back by one quantum, less what the measured
+        // power must have added since; anything further back is a reset
+        double backwardTolerance = Math.max(rounding,
+                counterResolutionKwh + rounding - (1 - RELATIVE_TOLERANCE) * integratedDelta);
+
+        double counterDelta = counterKwh - lastCounterKwh;
+        boolean counterUsable = true;
+        if (counterDelta < -backwardTolerance) {
+            if (counterModulusKwh > 0 && lastCounterKwh > 0.5 * counterModulusKwh
+                    && counterKwh < 0.5 * counterModulusKwh) {
+                counterDelta += counterModulusKwh;
+                status |= STATUS_WRAP;
+                wrapCount++;
+            } else {
+                status |= STATUS_RESET;
+                resetCount++;
+                counterUsable = false;
+            }
+        } else if (counterDelta < 0) {
+            // Jitter within the meter's resolution
+            counterDelta = 0;
+        }
+        if (counterDelta > maxDelta + tolerance) {
+            counterUsable = false;
+        }
+
+        double delta;
+        if (dt > gapThresholdMs) {
+            status |= STATUS_GAP;
+            gapCount++;
+            // Power between the samples is unknown; trust the counter if it is plausible
+            delta = counterUsable ? counterDelta : integratedDelta;
+        } else {
+            integratedKwh += integratedDelta;
+            if (counterUsable && Math.abs(counterDelta - integratedDelta) <= tolerance) {
+                delta = counterDelta;
+            } else {
+                if ((status & STATUS_RESET) == 0) {
+                    status |= STATUS_MISMATCH;
+                    mismatchCount++;
+                }
+                delta = integratedDelta;
+            }
+        }
+
+        lastDeltaKwh = delta;
+        energyKwh += delta;
+        lastTimestampMs = timestampMs;
+        lastPowerKw = powerKw;
+        lastCounterKwh = counterKwh;
+        return status;
+    }
+
+    /**
+     * Continues from a sample of an earlier run instead of starting over, so the
+     * next update() takes the energy used in between as a gap, with the usual
+     * reset and wrap checks. Call it before the first update().
+     *
+     * @param timestampMs time of that sample on the clock update() is called with
+     */
+    public void resume(long timestampMs, double powerKw, double counterKwh) {
+        started = true;
+        lastTimestampMs = timestampMs;
+        lastPowerKw = powerKw;
+        lastCounterKwh = counterKwh;
+        energyKwh = counterKwh;
+    }
+
+    public void reset() {
+        started = false;
+        energyKwh = 0;
+        integratedKwh = 0;
+        lastDeltaKwh = 0;
+        gapCount = resetCount = wrapCount = mismatchCount = 0;
+    }
+
+    /** Reconciled cumulative energy, continuing from the first counter reading. */
+    public double getEnergyKwh() {
+        return energyKwh;
+    }
+
+    /** Whether a sample has been taken since construction or reset(). */
+    public boolean isStarted() {
+        return started;
+    }
+
+    public double getLastPowerKw() {
+        return lastPowerKw;
+    }
+
+    public double getLastCounterKwh() {
+        return lastCounterKwh;
+    }
+
+    /** Energy from power x time alone, excluding sampling gaps. */
+    public double getIntegratedKwh() {
+        return integratedKwh;
+    }
+
+    /** Reconciled energy added by the last accepted sample. */
+    public double getLastDeltaKwh() {
+        return lastDeltaKwh;
+    }
+
+    public int getGapCount() {
+        return gapCount;
+    }
+
+    public int getResetCount() {
+        return resetCount;
+    }
+
+    public int getWrapCount() {
+        return wrapCount;
+    }
+
+    public int getMismatchCount() {
+        return mismatchCount;
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.smartwattv2;
+
+import android.app.AlertDialog;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.CheckBox;
+import android.widget.LinearLayout;
+import android.widget.ProgressBar;
+import android.widget.RadioGroup;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.FileProvider;
+import androidx.preference.PreferenceManager;
+
+import com.google.android.material.button.MaterialButtonToggleGroup;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class HistoryActivity extends AppCompatActivity {
+
+    private static final String TAG = "SmartWattHistory";
+    private static final long HOUR_MS = 60L * 60 * 1000;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    private static final String EXPORT_DIR = "exports";
+    private static final long EXPORT_KEEP_MS = DAY_MS; // Long enough for any share still reading one
+
+    private HistoryChartView chartView;
+    private String meterId;
+    private final ExecutorService exportExecutor = Executors.newSingleThreadExecutor();
+    private HistoryExporter exporter;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_history);
+
+        chartView = findViewById(R.id.historyChart);
+        MaterialButtonToggleGroup seriesGroup = findViewById(R.id.seriesGroup);
+        MaterialButtonToggleGroup rangeGroup = findViewById(R.id.rangeGroup);
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        meterId = sharedPreferences.getString(MainActivity.IP_PREFERENCE_KEY, MainActivity.DEFAULT_IP);
+        try {
+            chartView.setStore(HistoryStore.open(this, meterId));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open history", e);
+            Toast.makeText(this, "Could not open history: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+
+        seriesGroup.addOnButtonCheckedListener((group, checkedId, isChecked) -> {
+            if (isChecked) {
+                chartView.setSeries(checkedId == R.id.btnSeriesEnergy
+                        ? HistoryStore.SERIES_ENERGY : HistoryStore.SERIES_POWER);
+            }
+        });
+        rangeGroup.addOnButtonCheckedListener((group, checkedId, isChecked) -> {
+            if (isChecked) {
+                chartView.showLatest(rangeFor(checkedId));
+            }
+        });
+
+        findViewById(R.id.btnExport).setOnClickListener(v -> showExportDialog());
+
+        chartView.showLatest(DAY_MS);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (exporter != null) {
+            exporter.cancel();
+        }
+        exportExecutor.shutdown();
+    }
+
+    /** Asks for a format and meters, then exports the range shown in the chart. */
+    private void showExportDialog() {
+        long startMs = chartView.getViewStartMs();
+        long endMs = chartView.getViewEndMs();
+        View dialogView = getLayoutInflater().inflate(R.layout.dialog_export, null);
+        TextView textRange = dialogView.findViewById(R.id.textExportRange);
+        RadioGroup groupFormat = dialogView.findViewById(R.id.groupExportFormat);
+        LinearLayout metersContainer = dialogView.findViewById(R.id.exportMetersContainer);
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+        textRange.setText(String.format(Locale.US, "%s to %s",
+                dateFormat.format(new Date(startMs)), dateFormat.format(new Date(endMs))));
+
+        String current = HistoryStore.sanitize(meterId);
+        List<CheckBox> meterBoxes = new ArrayList<>();
+        for (String meter : HistoryStore.listMeters(this)) {
+            CheckBox box = new CheckBox(this);
+            box.setText(meter);
+            box.setChecked(meter.equals(current));
+            metersContainer.addView(box);
+            meterBoxes.add(box);
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle("Export History")
+                .setView(dialogView)
+                .setPositiveButton("Export", (dialog, which) -> {
+                    List<String> meters = new ArrayList<>();
+                    for (CheckBox box : meterBoxes) {
+                        if (box.isChecked()) {
+                            meters.add(box.getText().toString());
+                        }
+                    }
+                    int format = groupFormat.getCheckedRadioButtonId() == R.id.radioExportBinary
+                            ? HistoryExporter.FORMAT_BINARY : HistoryExporter.FORMAT_CSV;
+                    if (meters.isEmpty()) {
+                        Toast.makeText(this, "Select at least one meter", Toast.LENGTH_SHORT).show();
+                    } else {
+                        startExport(meters, startMs, endMs, format);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void startExport(List<String> meters, long startMs, long endMs, int format) {
+        if (exporter != null) {
+            Toast.makeText(this, "An export is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        HistoryExporter task = new HistoryExporter();
+        exporter = task;
+
+        ProgressBar progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setMax(100);
+        int padding = Math.round(24 * getResources().getDisplayMetrics().density);
+        progressBar.setPadding(padding, padding, padding, padding);
+        AlertDialog progressDialog = new AlertDialog.Builder(this)
+                .setTitle("Exporting")
+                .setView(progressBar)
+                .setCancelable(false)
+                .setNegativeButton("Cancel", (dialog, which) -> task.cancel())
+                .show();
+
+        String name = "smartwatt-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                + (format == HistoryExporter.FORMAT_BINARY ? ".swx" : ".csv");
+        File directory = new File(getCacheDir(), EXPORT_DIR);
+        File file = new File(directory, name);
+
+        exportExecutor.execute(() -> {
+            boolean completed = false;
+            String error = null;
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create " + directory);
+                }
+                // Clear out old exports, but not ones a recent share may still be reading
+                File[] old = directory.listFiles();
+                long cutoffMs = System.currentTimeMillis() - EXPORT_KEEP_MS;
+                if (old != null) {
+                    for (File f : old) {
+                        if (f.lastModified() < cutoffMs && !f.delete()) {
+                            Log.w(TAG, "Could not delete old export " + f);
+                        }
+                    }
+                }
+
+                List<HistoryStore> stores = new ArrayList<>();
+                for (String meter : meters) {
+                    stores.add(HistoryStore.open(this, meter));
+                }
+                int[] shownPercent = {0};
+                completed = task.export(stores, startMs, endMs, format, file, fraction -> {
+                    int percent = (int) (fraction * 100);
+                    if (percent != shownPercent[0]) {
+                        shownPercent[0] = percent;
+                        runOnUiThread(() -> progressBar.setProgress(percent));
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Export failed", e);
+                error = e.getMessage();
+            }
+
+            boolean succeeded = completed;
+            String message = error;
+            runOnUiThread(() -> {
+                exporter = null;
+                if (isDestroyed()) {
+                    return;
+                }
+                progressDialog.dismiss();
+                if (message != null) {
+                    Toast.makeText(this, "Export failed: " + message, Toast.LENGTH_LONG).show();
+                } else if (succeeded) {
+                    shareExport(file, format);
+                } else {
+                    Toast.makeText(this, "Export cancelled", Toast.LENGTH_SHORT).show();
+                }
+            });
+        });
+    }
+
+    private void shareExport(File file, int format) {
+        Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".fileprovider", file);
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(format == HistoryExporter.FORMAT_BINARY ? "application/octet-stream" : "text/csv");
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(intent, "Share history export"));
+    }
+
+    private static long rangeFor(int buttonId) {
+        if (buttonId == R.id.btnRangeHour) return HOUR_MS;
+        if (buttonId == R.id.btnRangeWeek) return 7 * DAY_MS;
+        if (buttonId == R.id.btnRangeMonth) return 30 * DAY_MS;
+        if (buttonId == R.id.btnRangeYear) return 365 * DAY_MS;
+        return DAY_MS;
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.smartwattv2;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateFormat;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import androidx.core.content.ContextCompat;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pannable, zoomable line chart over a {@link HistoryStore}.
+ *
+ * Queries run on a single background thread and return at most two points per
+ * pixel column, so drawing stays O(width) regardless of the visible range.
+ * While a gesture is in progress the last result is redrawn under the new
+ * viewport immediately and a fresh query is coalesced behind the running one.
+ */
+public class HistoryChartView extends View {
+
+    private static final String TAG = "SmartWattChart";
+    private static final long MIN_RANGE_MS = 60_000L;
+    private static final long MAX_RANGE_MS = 400L * 24 * 60 * 60 * 1000;
+    // Points further apart than this, and than GAP_COLUMNS columns, are not joined
+    private static final long MIN_GAP_MS = 15_000L;
+    private static final int GAP_COLUMNS = 3;
+
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Front buffer is drawn on the UI thread, back buffer is filled by the query thread
+    private HistoryStore.Series front = new HistoryStore.Series();
+    private HistoryStore.Series back = new HistoryStore.Series();
+    private boolean queryRunning;
+    private boolean queryPending;
+    // Labels of front, formatted when it changes rather than on every frame
+    private String maxLabel, minLabel, meanLabel;
+
+    private HistoryStore store;
+    private int series = HistoryStore.SERIES_POWER;
+    private long viewStartMs, viewEndMs;
+
+    private final Path path = new Path();
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint axisPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Date labelDate = new Date();
+    private java.text.DateFormat timeFormat;
+    private java.text.DateFormat dateFormat;
+
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+
+    public HistoryChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        float density = getResources().getDisplayMetrics().density;
+        linePaint.setColor(ContextCompat.getColor(context, R.color.primary));
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(1.5f * density);
+        axisPaint.setColor(ContextCompat.getColor(context, R.color.divider));
+        axisPaint.setStrokeWidth(density);
+        textPaint.setColor(ContextCompat.getColor(context, R.color.text_secondary));
+        textPaint.setTextSize(11 * density);
+
+        timeFormat = DateFormat.getTimeFormat(context);
+        dateFormat = DateFormat.getDateFormat(context);
+
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                float focus = detector.getFocusX() / Math.max(1, getWidth());
+                zoom(1f / detector.getScaleFactor(), focus);
+                return true;
+            }
+        });
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                long shift = (long) (distanceX / Math.max(1, getWidth()) * (viewEndMs - viewStartMs));
+                setViewport(viewStartMs + shift, viewEndMs + shift);
+                return true;
+            }
+        });
+    }
+
+    public void setStore(HistoryStore store) {
+        this.store = store;
+        requestQuery();
+    }
+
+    public void setSeries(int series) {
+        this.series = series;
+        requestQuery();
+    }
+
+    /** Shows the last {@code rangeMs} up to the newest sample. */
+    public void showLatest(long rangeMs) {
+        long end = store != null && store.getLastTimeMs() > 0 ? store.getLastTimeMs() : System.currentTimeMillis();
+        setViewport(end - rangeMs, end);
+    }
+
+    public void setViewport(long startMs, long endMs) {
+        viewStartMs = startMs;
+        viewEndMs = endMs;
+        invalidate();
+        requestQuery();
+    }
+
+    public long getViewStartMs() {
+        return viewStartMs;
+    }
+
+    public long getViewEndMs() {
+        return viewEndMs;
+    }
+
+    private void zoom(float factor, float focus) {
+        long range = viewEndMs - viewStartMs;
+        long newRange = (long) Math.max(MIN_RANGE_MS, Math.min(MAX_RANGE_MS, range * factor));
+        long focusMs = viewStartMs + (long) (range * focus);
+        long start = focusMs - (long) (newRange * focus);
+        setViewport(start, start + newRange);
+    }
+
+    private void requestQuery() {
+        if (store == null || getWidth() == 0 || queryExecutor.isShutdown()) {
+            return;
+        }
+        if (queryRunning) {
+            queryPending = true;
+            return;
+        }
+        queryRunning = true;
+
+        final long start = viewStartMs;
+        final long end = viewEndMs;
+        final int columns = getWidth();
+        final int querySeries = series;
+        final HistoryStore.Series target = back;
+        queryExecutor.execute(() -> {
+            try {
+                store.query(start, end, columns, querySeries, target);
+            } catch (IOException e) {
+                Log.e(TAG, "History query failed", e);
+                target.count = 0;
+            }
+            mainHandler.post(() -> {
+                back = front;
+                front = target;
+                updateLabels(querySeries);
+                queryRunning = false;
+                invalidate();
+                if (queryPending) {
+                    queryPending = false;
+                    requestQuery();
+                }
+            });
+        });
+    }
+
+    private void updateLabels(int labelSeries) {
+        HistoryStore.Series data = front;
+        String unit = labelSeries == HistoryStore.SERIES_POWER ? "kW" : "kWh";
+        maxLabel = String.format(Locale.US, "%.2f %s", Math.max(data.max, data.min + 1e-3f), unit);
+        minLabel = String.format(Locale.US, "%.2f %s", data.min, unit);
+        meanLabel = labelSeries == HistoryStore.SERIES_POWER && !Double.isNaN(data.mean)
+                ? String.format(Locale.US, "avg %.2f kW", data.mean) : null;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        requestQuery();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        scaleDetector.onTouchEvent(event);
+        if (!scaleDetector.isInProgress()) {
+            gestureDetector.onTouchEvent(event);
+        }
+        return true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        float width = getWidth();
+        float textHeight = textPaint.getTextSize();
+        float bottom = getHeight() - textHeight * 1.5f;
+        float top = textHeight * 1.5f;
+
+        canvas.drawLine(0, bottom, width, bottom, axisPaint);
+
+        // Time labels at both edges
+        boolean shortRange = viewEndMs - viewStartMs <= 24L * 60 * 60 * 1000;
+        java.text.DateFormat format = shortRange ? timeFormat : dateFormat;
+        labelDate.setTime(viewStartMs);
+        canvas.drawText(format.format(labelDate), 0, getHeight() - textHeight * 0.3f, textPaint);
+        labelDate.setTime(viewEndMs);
+        String endLabel = format.format(labelDate);
+        canvas.drawText(endLabel, width - textPaint.measureText(endLabel), getHeight() - textHeight * 0.3f, textPaint);
+
+        HistoryStore.Series data = front;
+        if (data.count == 0) {
+            canvas.drawText("No history in this range", 0, top, textPaint);
+            return;
+        }
+
+        float min = data.min;
+        float max = data.max;
+        if (max - min < 1e-3f) {
+            max = min + 1e-3f;
+        }
+        canvas.drawText(maxLabel, 0, top - textHeight * 0.3f, textPaint);
+        canvas.drawText(minLabel, 0, bottom - textHeight * 0.3f, textPaint);
+        if (meanLabel != null) {
+            canvas.drawText(meanLabel, width - textPaint.measureText(meanLabel), top - textHeight * 0.3f, textPaint);
+        }
+
+        double msPerPixel = (double) (viewEndMs - viewStartMs) / width;
+        double gapMs = Math.max(MIN_GAP_MS, GAP_COLUMNS * msPerPixel);
+        float yScale = (bottom - top) / (max - min);
+        path.rewind();
+        for (int i = 0; i < data.count; i++) {
+            float x = (float) ((data.times[i] - viewStartMs) / msPerPixel);
+            float y = bottom - (data.values[i] - min) * yScale;
+            if (i == 0 || data.times[i] - data.times[i - 1] > gapMs) {
+                // No data in between; leave the gap open
+                path.moveTo(x, y);
+            } else {
+                path.lineTo(x, y);
+            }
+        }
+        canvas.drawPath(path, linePaint);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        queryExecutor.shutdown();
+    }
+}
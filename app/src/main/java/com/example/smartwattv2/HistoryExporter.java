@@ -0,0 +1,335 @@
+package com.example.smartwattv2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Streams the sample history of a set of meters over a time range to a file.
+ *
+ * Works one {@link SampleBlock} at a time through fixed buffers, so memory use
+ * does not depend on the length of the range and rows are formatted without
+ * allocating. Two formats are supported:
+ * <ul>
+ *   <li>CSV, one row per sample:
+ *   {@code meter,time_ms,time_utc,voltage_v,current_a,power_kw,energy_kwh}.
+ *   Decimal readings are written with the digits the meter reported; unknown
+ *   values are left empty.</li>
+ *   <li>Binary, little endian: int magic "SWEX", int version, long start and
+ *   end of the range, then per meter a short length and UTF-8 id followed by
+ *   its blocks, each prefixed with its int size, and an int 0. Blocks inside
+ *   the range are copied as stored; the two at its edges are re-encoded with
+ *   just the samples in range.</li>
+ * </ul>
+ */
+public class HistoryExporter {
+
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_BINARY = 1;
+
+    static final int BINARY_MAGIC = 0x53574558; // "SWEX"
+    static final int BINARY_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_ROW_BYTES = 256;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final byte[] CSV_HEADER =
+            "meter,time_ms,time_utc,voltage_v,current_a,power_kw,energy_kwh\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int ALL_COLUMNS = (1 << SampleBlock.COLUMNS) - 1;
+
+    public interface ProgressListener {
+        /** @param fraction share of the blocks to export that are done, 0 to 1 */
+        void onProgress(float fraction);
+    }
+
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+    private final ByteBuffer outBuffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer blockBuffer =
+            ByteBuffer.allocate(SampleBlock.MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final SampleBlock.Decoder decoder = new SampleBlock.Decoder();
+    private final SampleBlock.Encoder encoder = new SampleBlock.Encoder();
+    private final byte[] digits = new byte[20];
+    private final byte[] date = new byte[11]; // "yyyy-MM-ddT" of dateDay
+    private long dateDay = Long.MIN_VALUE;
+
+    private FileChannel channel;
+    private int length; // Bytes pending in the buffer
+    private volatile boolean cancelled;
+
+    /**
+     * Stops the export, also when called before it starts; {@link #export}
+     * then deletes the partial file and returns false. Use a new exporter for
+     * the next export.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Writes samples of {@code stores} in [{@code startMs}, {@code endMs}) to {@code file}.
+     *
+     * @return false if cancelled
+     */
+    public boolean export(List<HistoryStore> stores, long startMs, long endMs, int format, File file,
+                          ProgressListener listener) throws IOException {
+        boolean completed = false;
+        try (FileChannel out = new FileOutputStream(file).getChannel()) {
+            channel = out;
+            length = 0;
+            if (format == FORMAT_BINARY) {
+                outBuffer.clear();
+                outBuffer.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putLong(startMs).putLong(endMs);
+                length = outBuffer.position();
+            } else {
+                put(CSV_HEADER);
+            }
+
+            int totalBlocks = 0;
+            int[] firstBlocks = new int[stores.size()];
+            int[] lastBlocks = new int[stores.size()];
+            for (int i = 0; i < stores.size(); i++) {
+                HistoryStore store = stores.get(i);
+                firstBlocks[i] = store.findBlock(startMs);
+                lastBlocks[i] = Math.min(store.findBlock(endMs), store.getBlockCount() - 1);
+                totalBlocks += Math.max(0, lastBlocks[i] - firstBlocks[i] + 1);
+            }
+
+            int doneBlocks = 0;
+            for (int i = 0; i < stores.size() && !cancelled; i++) {
+                HistoryStore store = stores.get(i);
+                byte[] meterId = store.getMeterId().getBytes(StandardCharsets.UTF_8);
+                if (format == FORMAT_BINARY) {
+                    reserve(2 + meterId.length);
+                    outBuffer.clear();
+                    outBuffer.position(length);
+                    outBuffer.putShort((short) meterId.length).put(meterId);
+                    length = outBuffer.position();
+                }
+
+                for (int block = firstBlocks[i]; block <= lastBlocks[i] && !cancelled; block++) {
+                    store.readBlock(block, blockBuffer);
+                    if (format == FORMAT_BINARY) {
+                        writeBinaryBlock(startMs, endMs);
+                    } else {
+                        writeCsvBlock(meterId, startMs, endMs);
+                    }
+                    doneBlocks++;
+                    if (listener != null) {
+                        listener.onProgress((float) doneBlocks / totalBlocks);
+                    }
+                }
+
+                if (format == FORMAT_BINARY) {
+                    reserve(4);
+                    putInt(0);
+                }
+            }
+            flush();
+            completed = !cancelled;
+        } finally {
+            channel = null;
+            if (!completed) {
+                file.delete();
+            }
+        }
+        return completed;
+    }
+
+    private void writeBinaryBlock(long startMs, long endMs) throws IOException {
+        ByteBuffer block = blockBuffer;
+        if (SampleBlock.getStartMs(block) < startMs || SampleBlock.getEndMs(block) >= endMs) {
+            // Edge of the range: keep only the samples inside it
+            decoder.decode(block, ALL_COLUMNS);
+            encoder.reset();
+            for (int n = 0; n < decoder.count; n++) {
+                long time = decoder.times[n];
+                if (time >= startMs && time < endMs) {
+                    encoder.add(time, decoder.values[SampleBlock.VOLTAGE][n], decoder.values[SampleBlock.CURRENT][n],
+                            decoder.values[SampleBlock.POWER][n], decoder.values[SampleBlock.ENERGY][n]);
+                }
+            }
+            if (encoder.getCount() == 0) {
+                return;
+            }
+            block.clear();
+            encoder.writeTo(block);
+            block.flip();
+        }
+
+        int size = block.remaining();
+        reserve(4 + size);
+        putInt(size);
+        block.get(bytes, length, size);
+        length += size;
+    }
+
+    private void writeCsvBlock(byte[] meterId, long startMs, long endMs) throws IOException {
+        SampleBlock.Decoder samples = decoder;
+        samples.decode(blockBuffer, ALL_COLUMNS);
+        for (int n = 0; n < samples.count; n++) {
+            long time = samples.times[n];
+            if (time < startMs || time >= endMs) {
+                continue;
+            }
+            reserve(meterId.length + MAX_ROW_BYTES);
+            put(meterId);
+            put(',');
+            putLong(time);
+            put(',');
+            putUtcTime(time);
+            for (int c = 0; c < SampleBlock.COLUMNS; c++) {
+                put(',');
+                int scale = samples.scales[c];
+                putValue(samples.values[c][n], scale >= 0 ? samples.scaled[c][n] : SampleBlock.NOT_SCALED, scale);
+            }
+            put('\n');
+        }
+    }
+
+    /** Writes {@code scaled / 10^scale} when it is known, else {@code value}. */
+    private void putValue(float value, int scaled, int scale) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        long k = scaled;
+        if (scaled == SampleBlock.NOT_SCALED) {
+            // Not a short decimal; rare enough that the allocation does not matter
+            String text = Float.toString(value);
+            for (int i = 0; i < text.length(); i++) {
+                put(text.charAt(i));
+            }
+            return;
+        }
+
+        if (k < 0) {
+            put('-');
+            k = -k;
+        }
+        // Digits of k, least significant first, padded to at least one before the point
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + k % 10);
+            k /= 10;
+        } while (k > 0 || count <= scale);
+        while (count > scale) {
+            bytes[length++] = digits[--count];
+        }
+        if (scale > 0) {
+            bytes[length++] = '.';
+            while (count > 0) {
+                bytes[length++] = digits[--count];
+            }
+        }
+    }
+
+    /** Writes e.g. {@code 2026-10-19T08:30:05.250Z}. */
+    private void putUtcTime(long timeMs) {
+        long day = Math.floorDiv(timeMs, DAY_MS);
+        if (day != dateDay) {
+            dateDay = day;
+            formatDate(day);
+        }
+        System.arraycopy(date, 0, bytes, length, date.length);
+        length += date.length;
+
+        int msOfDay = (int) (timeMs - day * DAY_MS);
+        putTwoDigits(msOfDay / 3_600_000);
+        put(':');
+        putTwoDigits(msOfDay / 60_000 % 60);
+        put(':');
+        putTwoDigits(msOfDay / 1000 % 60);
+        put('.');
+        int ms = msOfDay % 1000;
+        put((char) ('0' + ms / 100));
+        putTwoDigits(ms % 100);
+        put('Z');
+    }
+
+    /** Civil date of a day since the epoch, after Howard Hinnant's days_from_civil inverse. */
+    private void formatDate(long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        int year4 = (int) Math.max(0, Math.min(9999, year));
+        date[0] = (byte) ('0' + year4 / 1000);
+        date[1] = (byte) ('0' + year4 / 100 % 10);
+        date[2] = (byte) ('0' + year4 / 10 % 10);
+        date[3] = (byte) ('0' + year4 % 10);
+        date[4] = '-';
+        date[5] = (byte) ('0' + month / 10);
+        date[6] = (byte) ('0' + month % 10);
+        date[7] = '-';
+        date[8] = (byte) ('0' + dayOfMonth / 10);
+        date[9] = (byte) ('0' + dayOfMonth % 10);
+        date[10] = 'T';
+    }
+
+    private void putTwoDigits(int value) {
+        bytes[length++] = (byte) ('0' + value / 10);
+        bytes[length++] = (byte) ('0' + value % 10);
+    }
+
+    private void putLong(long value) {
+        if (value < 0) {
+            put('-');
+            if (value == Long.MIN_VALUE) {
+                // Cannot be negated; emit its digits directly
+                put(Long.toString(value).substring(1).getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (count > 0) {
+            bytes[length++] = digits[--count];
+        }
+    }
+
+    private void putInt(int value) {
+        bytes[length++] = (byte) value;
+        bytes[length++] = (byte) (value >>> 8);
+        bytes[length++] = (byte) (value >>> 16);
+        bytes[length++] = (byte) (value >>> 24);
+    }
+
+    private void put(char c) {
+        bytes[length++] = (byte) c;
+    }
+
+    private void put(byte[] data) {
+        System.arraycopy(data, 0, bytes, length, data.length);
+        length += data.length;
+    }
+
+    /** Makes room for {@code size} more bytes. */
+    private void reserve(int size) throws IOException {
+        if (length + size > bytes.length) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        outBuffer.clear();
+        outBuffer.limit(length);
+        while (outBuffer.hasRemaining()) {
+            channel.write(outBuffer);
+        }
+        length = 0;
+    }
+}
@@ -0,0 +1,448 @@
+package com.example.smartwattv2;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk sample history for one meter, with precomputed levels of detail.
+ *
+ * Raw samples are appended to compressed {@link SampleBlock}s in
+ * {@code samples.blk}. Each level of detail is a dense file of fixed-size
+ * buckets (min/max power and energy, mean power), 16x coarser than the level
+ * below, so the bucket for any time is found by arithmetic instead of a search.
+ * {@link #query} picks the coarsest level that still resolves one pixel column
+ * and min/max-downsamples it, returning at most two points per column no
+ * matter how long the range is. The mean comes from the same buckets.
+ */
+public class HistoryStore {
+
+    public static final int SERIES_POWER = 0;
+    public static final int SERIES_ENERGY = 1;
+
+    private static final String HISTORY_DIR = "history";
+    private static final String SAMPLES_FILE = "samples.blk";
+    private static final String META_FILE = "meta.bin";
+
+    // float minP, maxP, minE, maxE, meanP, int count of known P
+    private static final int BUCKET_RECORD_SIZE = 24;
+    private static final long[] LEVEL_BUCKET_MS = {16_000L, 256_000L, 4_096_000L, 65_536_000L};
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** Downsampled points of one series, reused between queries. */
+    public static class Series {
+        public long[] times = new long[0];
+        public float[] values = new float[0];
+        public int count;
+        public float min, max;
+        // Of all power samples in the buckets overlapping the range, not just the
+        // returned points; NaN for energy
+        public double mean;
+
+        void ensureCapacity(int capacity) {
+            if (times.length < capacity) {
+                times = new long[capacity];
+                values = new float[capacity];
+            }
+            count = 0;
+            min = Float.POSITIVE_INFINITY;
+            max = Float.NEGATIVE_INFINITY;
+            mean = Double.NaN;
+        }
+
+        void add(long time, float value) {
+            times[count] = time;
+            values[count] = value;
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+    }
+
+    private static final Map<String, HistoryStore> openStores = new HashMap<>();
+
+    private final File directory;
+    private final SampleBlockFile samples;
+    private final FileChannel[] levelChannels = new FileChannel[LEVEL_BUCKET_MS.length];
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer bucketBuffer = ByteBuffer.allocateDirect(BUCKET_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long baseTimeMs = -1; // Start of bucket 0 on every level
+    private long lastTimeMs = Long.MIN_VALUE;
+    private long firstTimeMs = -1;
+
+    // Open bucket of each level, kept in memory until it closes
+    private final long[] openIndex = new long[LEVEL_BUCKET_MS.length];
+    private final float[][] openBucket = new float[LEVEL_BUCKET_MS.length][4];
+    private final double[] openPowerSum = new double[LEVEL_BUCKET_MS.length];
+    private final int[] openPowerCount = new int[LEVEL_BUCKET_MS.length];
+
+    // Per-column accumulators for query()
+    private float[] columnMin = new float[0];
+    private float[] columnMax = new float[0];
+    private double meanSum;
+    private long meanCount;
+
+    /** Process-wide store for {@code meterId}, opened on first use. */
+    public static synchronized HistoryStore open(Context context, String meterId) throws IOException {
+        File directory = new File(new File(context.getFilesDir(), HISTORY_DIR), sanitize(meterId));
+        String key = directory.getAbsolutePath();
+        HistoryStore store = openStores.get(key);
+        if (store == null) {
+            store = new HistoryStore(directory);
+            openStores.put(key, store);
+        }
+        return store;
+    }
+
+    /** Meters that have recorded history, by the id {@link #open} stores them under. */
+    public static String[] listMeters(Context context) {
+        File[] directories = new File(context.getFilesDir(), HISTORY_DIR).listFiles(File::isDirectory);
+        if (directories == null) {
+            return new String[0];
+        }
+        String[] meterIds = new String[directories.length];
+        for (int i = 0; i < directories.length; i++) {
+            meterIds[i] = directories[i].getName();
+        }
+        Arrays.sort(meterIds);
+        return meterIds;
+    }
+
+    static String sanitize(String meterId) {
+        return meterId.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    HistoryStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        samples = new SampleBlockFile(new File(directory, SAMPLES_FILE));
+        for (int level = 0; level < LEVEL_BUCKET_MS.length; level++) {
+            levelChannels[level] = new RandomAccessFile(new File(directory, "lod" + level + ".bin"), "rw").getChannel();
+        }
+        Arrays.fill(openIndex, -1);
+        loadMeta();
+    }
+
+    private void loadMeta() throws IOException {
+        File meta = new File(directory, META_FILE);
+        if (meta.exists() && samples.getBlockCount() > 0) {
+            try (RandomAccessFile in = new RandomAccessFile(meta, "r")) {
+                baseTimeMs = in.readLong();
+            }
+            firstTimeMs = samples.getFirstTimeMs();
+            lastTimeMs = samples.getLastTimeMs();
+            for (int level = 0; level < LEVEL_BUCKET_MS.length; level++) {
+                reopenBucket(level, lastTimeMs);
+            }
+        }
+    }
+
+    private void reopenBucket(int level, long timeMs) throws IOException {
+        long index = (timeMs - baseTimeMs) / LEVEL_BUCKET_MS[level];
+        bucketBuffer.clear();
+        if (levelChannels[level].read(bucketBuffer, index * BUCKET_RECORD_SIZE) == BUCKET_RECORD_SIZE) {
+            bucketBuffer.flip();
+            for (int i = 0; i < 4; i++) {
+                openBucket[level][i] = bucketBuffer.getFloat();
+            }
+            float mean = bucketBuffer.getFloat();
+            openPowerCount[level] = bucketBuffer.getInt();
+            openPowerSum[level] = openPowerCount[level] > 0 ? (double) mean * openPowerCount[level] : 0;
+            openIndex[level] = index;
+        }
+    }
+
+    /**
+     * Appends a sample. Samples that are not newer than the last one are ignored.
+     * Writes to disk every {@link SampleBlockFile#JOURNAL_BATCH} samples, so
+     * call it off the main thread.
+     */
+    public synchronized void append(long timeMs, float voltage, float current, float powerKw, float energyKwh)
+            throws IOException {
+        if (timeMs <= lastTimeMs) {
+            return;
+        }
+        if (baseTimeMs < 0) {
+            long coarsest = LEVEL_BUCKET_MS[LEVEL_BUCKET_MS.length - 1];
+            baseTimeMs = timeMs / coarsest * coarsest;
+            firstTimeMs = timeMs;
+            try (RandomAccessFile out = new RandomAccessFile(new File(directory, META_FILE), "rw")) {
+                out.setLength(0);
+                out.writeLong(baseTimeMs);
+            }
+        }
+        lastTimeMs = timeMs;
+
+        samples.append(timeMs, voltage, current, powerKw, energyKwh);
+
+        addToLevels(timeMs, powerKw, energyKwh);
+    }
+
+    private void addToLevels(long timeMs, float powerKw, float energyKwh) throws IOException {
+        for (int level = 0; level < LEVEL_BUCKET_MS.length; level++) {
+            long index = (timeMs - baseTimeMs) / LEVEL_BUCKET_MS[level];
+            float[] bucket = openBucket[level];
+            if (index != openIndex[level]) {
+                writeBucket(level);
+                openIndex[level] = index;
+                bucket[0] = bucket[2] = Float.POSITIVE_INFINITY;
+                bucket[1] = bucket[3] = Float.NEGATIVE_INFINITY;
+                openPowerSum[level] = 0;
+                openPowerCount[level] = 0;
+            }
+            // Unknown readings stay out, as they do in the block headers
+            if (SampleBlock.isKnown(powerKw)) {
+                bucket[0] = Math.min(bucket[0], powerKw);
+                bucket[1] = Math.max(bucket[1], powerKw);
+                openPowerSum[level] += powerKw;
+                openPowerCount[level]++;
+            }
+            if (SampleBlock.isKnown(energyKwh)) {
+                bucket[2] = Math.min(bucket[2], energyKwh);
+                bucket[3] = Math.max(bucket[3], energyKwh);
+            }
+        }
+    }
+
+    private void writeBucket(int level) throws IOException {
+        if (openIndex[level] < 0) {
+            return;
+        }
+        FileChannel channel = levelChannels[level];
+        long position = openIndex[level] * BUCKET_RECORD_SIZE;
+
+        // Fill skipped buckets with NaN and no samples so gaps read as empty
+        long size = channel.size() / BUCKET_RECORD_SIZE * BUCKET_RECORD_SIZE;
+        if (size < position) {
+            int records = (int) Math.min(position - size, READ_BUFFER_SIZE) / BUCKET_RECORD_SIZE;
+            ByteBuffer empty = ByteBuffer.allocate(records * BUCKET_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (empty.hasRemaining()) {
+                empty.putFloat(Float.NaN).putFloat(Float.NaN).putFloat(Float.NaN).putFloat(Float.NaN)
+                        .putFloat(Float.NaN).putInt(0);
+            }
+            for (long p = size; p < position; p += empty.capacity()) {
+                empty.clear();
+                empty.limit((int) Math.min(empty.capacity(), position - p));
+                channel.write(empty, p);
+            }
+        }
+
+        bucketBuffer.clear();
+        float[] bucket = openBucket[level];
+        int count = openPowerCount[level];
+        bucketBuffer.putFloat(bucket[0]).putFloat(bucket[1]).putFloat(bucket[2]).putFloat(bucket[3])
+                .putFloat(count > 0 ? (float) (openPowerSum[level] / count) : Float.NaN).putInt(count);
+        bucketBuffer.flip();
+        channel.write(bucketBuffer, position);
+    }
+
+    /** Writes buffered samples and open buckets to disk. */
+    public synchronized void flush() throws IOException {
+        samples.flush();
+        for (int level = 0; level < LEVEL_BUCKET_MS.length; level++) {
+            writeBucket(level);
+        }
+    }
+
+    public synchronized long getFirstTimeMs() {
+        return firstTimeMs;
+    }
+
+    public synchronized long getLastTimeMs() {
+        return lastTimeMs == Long.MIN_VALUE ? -1 : lastTimeMs;
+    }
+
+    public String getMeterId() {
+        return directory.getName();
+    }
+
+    public synchronized int getBlockCount() {
+        return samples.getBlockCount();
+    }
+
+    /** Index of the first sample block that ends at or after {@code timeMs}. */
+    public synchronized int findBlock(long timeMs) {
+        return samples.findBlock(timeMs);
+    }
+
+    /** Copies the encoded bytes of a sample block into {@code out}; see {@link SampleBlockFile#read}. */
+    public synchronized void readBlock(int block, ByteBuffer out) throws IOException {
+        samples.read(block, out);
+    }
+
+    /**
+     * Count, min, max and sum of a {@link SampleBlock} column over samples in
+     * [{@code startMs}, {@code endMs}), at full resolution.
+     */
+    public synchronized void aggregate(long startMs, long endMs, int column, SampleBlockFile.Aggregate out)
+            throws IOException {
+        samples.aggregate(startMs, endMs, column, out);
+    }
+
+    /**
+     * Fills {@code out} with at most {@code 2 * columns} points of {@code series}
+     * between {@code startMs} and {@code endMs}: the min and max of each column.
+     */
+    public synchronized void query(long startMs, long endMs, int columns, int series, Series out) throws IOException {
+        out.ensureCapacity(2 * columns);
+        if (baseTimeMs < 0 || endMs <= startMs || columns <= 0) {
+            return;
+        }
+        int column = series == SERIES_POWER ? SampleBlock.POWER : SampleBlock.ENERGY;
+        meanSum = 0;
+        meanCount = 0;
+
+        if (columnMin.length < columns) {
+            columnMin = new float[columns];
+            columnMax = new float[columns];
+        }
+        Arrays.fill(columnMin, 0, columns, Float.POSITIVE_INFINITY);
+        Arrays.fill(columnMax, 0, columns, Float.NEGATIVE_INFINITY);
+
+        double columnMs = (double) (endMs - startMs) / columns;
+        int level = levelFor(columnMs);
+        if (level < 0) {
+            scanSamples(startMs, endMs, columnMs, columns, column);
+        } else {
+            scanLevel(level, startMs, endMs, columnMs, columns, series);
+        }
+        if (series == SERIES_POWER && meanCount > 0) {
+            out.mean = meanSum / meanCount;
+        }
+
+        for (int c = 0; c < columns; c++) {
+            if (columnMin[c] <= columnMax[c]) {
+                long time = startMs + (long) (c * columnMs);
+                out.add(time, columnMin[c]);
+                if (columnMax[c] != columnMin[c]) {
+                    out.add(time, columnMax[c]);
+                }
+            }
+        }
+    }
+
+    /** Coarsest level whose buckets fit in a column of {@code columnMs}, or -1 for raw samples. */
+    static int levelFor(double columnMs) {
+        int level = -1;
+        while (level + 1 < LEVEL_BUCKET_MS.length && LEVEL_BUCKET_MS[level + 1] <= columnMs) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Adds the extremes of a sample or bucket starting at {@code timeMs}. Only
+     * buckets overlapping the range are passed, so one starting before it
+     * belongs to the first column.
+     */
+    private void accumulate(long timeMs, float min, float max, long startMs, double columnMs, int columns) {
+        int column = timeMs < startMs ? 0 : (int) ((timeMs - startMs) / columnMs);
+        if (column >= columns || Float.isNaN(min)) {
+            return;
+        }
+        columnMin[column] = Math.min(columnMin[column], min);
+        columnMax[column] = Math.max(columnMax[column], max);
+    }
+
+    private void scanSamples(long startMs, long endMs, double columnMs, int columns, int column)
+            throws IOException {
+        int blocks = samples.getBlockCount();
+        for (int block = samples.findBlock(startMs); block < blocks; block++) {
+            long blockStart = samples.getBlockStartMs(block);
+            if (blockStart >= endMs) {
+                return;
+            }
+            long blockEnd = samples.getBlockEndMs(block);
+            if (blockStart >= startMs && blockEnd < endMs
+                    && (int) ((blockStart - startMs) / columnMs) == (int) ((blockEnd - startMs) / columnMs)) {
+                // The whole block falls in one pixel column, its extremes are all we need
+                ByteBuffer header = samples.readHeader(block);
+                accumulate(blockStart, SampleBlock.getMin(header, column), SampleBlock.getMax(header, column),
+                        startMs, columnMs, columns);
+                meanSum += SampleBlock.getSum(header, column);
+                meanCount += SampleBlock.getKnownCount(header, column);
+                continue;
+            }
+
+            SampleBlock.Decoder decoded = samples.decode(block, 1 << column);
+            float[] values = decoded.values[column];
+            for (int n = 0; n < decoded.count; n++) {
+                long time = decoded.times[n];
+                if (time >= endMs) {
+                    return;
+                }
+                if (time >= startMs && SampleBlock.isKnown(values[n])) {
+                    accumulate(time, values[n], values[n], startMs, columnMs, columns);
+                    meanSum += values[n];
+                    meanCount++;
+                }
+            }
+        }
+    }
+
+    private void scanLevel(int level, long startMs, long endMs, double columnMs, int columns, int series)
+            throws IOException {
+        long bucketMs = LEVEL_BUCKET_MS[level];
+        long first = Math.max(0, (startMs - baseTimeMs) / bucketMs);
+        long last = (endMs - 1 - baseTimeMs) / bucketMs;
+        FileChannel channel = levelChannels[level];
+        long stored = channel.size() / BUCKET_RECORD_SIZE;
+        int minOffset = series == SERIES_POWER ? 0 : 8;
+
+        long position = first * BUCKET_RECORD_SIZE;
+        long end = Math.min(last + 1, stored) * BUCKET_RECORD_SIZE;
+        long index = first;
+        while (position < end) {
+            readBuffer.clear();
+            readBuffer.limit((int) Math.min(READ_BUFFER_SIZE / BUCKET_RECORD_SIZE * BUCKET_RECORD_SIZE,
+                    end - position));
+            int read = readFully(channel, position);
+            for (int offset = 0; offset + BUCKET_RECORD_SIZE <= read; offset += BUCKET_RECORD_SIZE, index++) {
+                if (index == openIndex[level]) {
+                    continue; // Taken from memory below
+                }
+                accumulate(baseTimeMs + index * bucketMs,
+                        readBuffer.getFloat(offset + minOffset), readBuffer.getFloat(offset + minOffset + 4),
+                        startMs, columnMs, columns);
+                int count = readBuffer.getInt(offset + 20);
+                if (count > 0) {
+                    meanSum += (double) readBuffer.getFloat(offset + 16) * count;
+                    meanCount += count;
+                }
+            }
+            position += read;
+        }
+
+        long open = openIndex[level];
+        if (open >= first && open <= last) {
+            float[] bucket = openBucket[level];
+            accumulate(baseTimeMs + open * bucketMs, bucket[minOffset / 4], bucket[minOffset / 4 + 1],
+                    startMs, columnMs, columns);
+            meanSum += openPowerSum[level];
+            meanCount += openPowerCount[level];
+        }
+    }
+
+    private int readFully(FileChannel channel, long position) throws IOException {
+        int total = 0;
+        while (readBuffer.hasRemaining()) {
+            int read = channel.read(readBuffer, position + total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,352 @@
+package com.example.smartwattv2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streaming appliance-level load disaggregation.
+ *
+ * Samples are handed over through a fixed-size ring buffer to a single
+ * low-priority worker thread, so the caller never blocks and memory does not
+ * grow with the input rate. The worker looks for step changes between steady
+ * power levels, clusters the steps into appliance signatures (power, current,
+ * power factor), pairs on/off edges and integrates energy per appliance.
+ * All state is preallocated; processing a sample is O(MAX_APPLIANCES).
+ */
+public class LoadDisaggregator {
+
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int MAX_APPLIANCES = 16;
+    private static final float STEP_THRESHOLD_KW = 0.04f;  // Smallest step treated as a switch event
+    private static final float MATCH_TOLERANCE = 0.15f;    // Relative tolerance when matching a signature
+    private static final int SETTLE_SAMPLES = 3;           // Samples a new level must hold before it counts
+    private static final float BASELINE_SMOOTHING = 0.2f;
+    private static final long MAX_INTEGRATION_GAP_MS = 10_000;
+
+    public static class Appliance {
+        public int id;
+        public String label;
+        public float powerKw;
+        public float currentA;
+        public float powerFactor;
+        public boolean on;
+        public long onSinceMs;
+        public double energyKwh;
+        public int switchCount;
+
+        void copyFrom(Appliance other) {
+            id = other.id;
+            label = other.label;
+            powerKw = other.powerKw;
+            currentA = other.currentA;
+            powerFactor = other.powerFactor;
+            on = other.on;
+            onSinceMs = other.onSinceMs;
+            energyKwh = other.energyKwh;
+            switchCount = other.switchCount;
+        }
+    }
+
+    // Producer/consumer ring buffer
+    private final Object queueLock = new Object();
+    private final long[] queueTime = new long[QUEUE_CAPACITY];
+    private final float[] queueVoltage = new float[QUEUE_CAPACITY];
+    private final float[] queueCurrent = new float[QUEUE_CAPACITY];
+    private final float[] queuePower = new float[QUEUE_CAPACITY];
+    private int queueHead;
+    private int queueSize;
+    private long droppedSamples;
+
+    private volatile boolean running;
+    private Thread worker;
+
+    // Detector state, guarded by stateLock
+    private final Object stateLock = new Object();
+    private final Appliance[] appliances = new Appliance[MAX_APPLIANCES];
+    private int applianceCount;
+    private int nextApplianceId = 1;
+    private boolean hasBaseline;
+    private float baselinePower, baselineCurrent;
+    private int pendingCount;
+    private float pendingSumPower, pendingSumCurrent, pendingSumVoltage;
+    private float pendingMin, pendingMax;
+    private long lastSampleMs = -1;
+    private float lastPower;
+    private double unexplainedEnergyKwh;
+
+    public LoadDisaggregator() {
+        for (int i = 0; i < MAX_APPLIANCES; i++) {
+            appliances[i] = new Appliance();
+        }
+    }
+
+    /** Starts the worker thread; called once, with {@link #stop()} when done. */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::runWorker, "LoadDisaggregator");
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Stops the worker after at most the batch it is processing. */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        worker.interrupt();
+        worker = null;
+    }
+
+    /**
+     * Queues a sample without blocking. When the worker falls behind, the
+     * oldest queued sample is overwritten.
+     */
+    public void submit(long timestampMs, float voltage, float current, float powerKw) {
+        synchronized (queueLock) {
+            int index;
+            if (queueSize == QUEUE_CAPACITY) {
+                index = queueHead;
+                queueHead = (queueHead + 1) % QUEUE_CAPACITY;
+                droppedSamples++;
+            } else {
+                index = (queueHead + queueSize) % QUEUE_CAPACITY;
+                queueSize++;
+            }
+            queueTime[index] = timestampMs;
+            queueVoltage[index] = voltage;
+            queueCurrent[index] = current;
+            queuePower[index] = powerKw;
+            queueLock.notify();
+        }
+    }
+
+    private void runWorker() {
+        // Batch drained from the ring under the lock
+        long[] batchTime = new long[QUEUE_CAPACITY];
+        float[] batchVoltage = new float[QUEUE_CAPACITY];
+        float[] batchCurrent = new float[QUEUE_CAPACITY];
+        float[] batchPower = new float[QUEUE_CAPACITY];
+
+        while (running) {
+            int count;
+            synchronized (queueLock) {
+                while (running && queueSize == 0) {
+                    try {
+                        queueLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                count = queueSize;
+                for (int i = 0; i < count; i++) {
+                    int index = (queueHead + i) % QUEUE_CAPACITY;
+                    batchTime[i] = queueTime[index];
+                    batchVoltage[i] = queueVoltage[index];
+                    batchCurrent[i] = queueCurrent[index];
+                    batchPower[i] = queuePower[index];
+                }
+                queueHead = (queueHead + count) % QUEUE_CAPACITY;
+                queueSize = 0;
+            }
+
+            synchronized (stateLock) {
+                for (int i = 0; i < count; i++) {
+                    process(batchTime[i], batchVoltage[i], batchCurrent[i], batchPower[i]);
+                }
+            }
+        }
+    }
+
+    // Called on the worker thread with stateLock held
+    void process(long timestampMs, float voltage, float current, float power) {
+        integrate(timestampMs, power);
+
+        if (!hasBaseline) {
+            baselinePower = power;
+            baselineCurrent = current;
+            hasBaseline = true;
+            return;
+        }
+
+        if (Math.abs(power - baselinePower) < STEP_THRESHOLD_KW) {
+            // Steady: follow slow drift of the current level
+            baselinePower += BASELINE_SMOOTHING * (power - baselinePower);
+            baselineCurrent += BASELINE_SMOOTHING * (current - baselineCurrent);
+            pendingCount = 0;
+            return;
+        }
+
+        if (pendingCount > 0 && (Math.max(pendingMax, power) - Math.min(pendingMin, power)) >= STEP_THRESHOLD_KW) {
+            // Still in a transient; restart the candidate level from this sample
+            pendingCount = 0;
+        }
+        if (pendingCount == 0) {
+            pendingSumPower = pendingSumCurrent = pendingSumVoltage = 0;
+            pendingMin = pendingMax = power;
+        }
+        pendingCount++;
+        pendingSumPower += power;
+        pendingSumCurrent += current;
+        pendingSumVoltage += voltage;
+        pendingMin = Math.min(pendingMin, power);
+        pendingMax = Math.max(pendingMax, power);
+
+        if (pendingCount >= SETTLE_SAMPLES) {
+            float levelPower = pendingSumPower / pendingCount;
+            float levelCurrent = pendingSumCurrent / pendingCount;
+            float levelVoltage = pendingSumVoltage / pendingCount;
+            onStep(timestampMs, levelPower - baselinePower, levelCurrent - baselineCurrent, levelVoltage);
+            baselinePower = levelPower;
+            baselineCurrent = levelCurrent;
+            pendingCount = 0;
+        }
+    }
+
+    private void integrate(long timestampMs, float power) {
+        if (lastSampleMs >= 0) {
+            long dt = timestampMs - lastSampleMs;
+            if (dt > 0 && dt <= MAX_INTEGRATION_GAP_MS) {
+                double hours = dt / 3_600_000.0;
+                double explained = 0;
+                for (int i = 0; i < applianceCount; i++) {
+                    Appliance a = appliances[i];
+                    if (a.on) {
+                        a.energyKwh += a.powerKw * hours;
+                        explained += a.powerKw;
+                    }
+                }
+                unexplainedEnergyKwh += Math.max(0, lastPower - explained) * hours;
+            }
+        }
+        lastSampleMs = timestampMs;
+        lastPower = power;
+    }
+
+    private void onStep(long timestampMs, float deltaPower, float deltaCurrent, float voltage) {
+        float magnitude = Math.abs(deltaPower);
+        float apparentKva = Math.abs(deltaCurrent) * voltage / 1000f;
+        float powerFactor = apparentKva > 0 ? Math.min(1f, magnitude / apparentKva) : 1f;
+
+        if (deltaPower > 0) {
+            Appliance match = findMatch(magnitude, false);
+            if (match == null) {
+                match = allocate();
+                if (match == null) {
+                    // Every signature is running; leave this load unexplained
+                    return;
+                }
+                match.powerKw = magnitude;
+                match.currentA = Math.abs(deltaCurrent);
+                match.powerFactor = powerFactor;
+            } else {
+                refine(match, magnitude, Math.abs(deltaCurrent), powerFactor);
+            }
+            match.on = true;
+            match.onSinceMs = timestampMs;
+            match.switchCount++;
+            match.label = classify(match.powerKw, match.powerFactor);
+        } else {
+            Appliance match = findMatch(magnitude, true);
+            if (match != null) {
+                refine(match, magnitude, Math.abs(deltaCurrent), powerFactor);
+                match.on = false;
+                match.label = classify(match.powerKw, match.powerFactor);
+            }
+        }
+    }
+
+    private Appliance findMatch(float powerKw, boolean on) {
+        Appliance best = null;
+        float bestError = Float.MAX_VALUE;
+        for (int i = 0; i < applianceCount; i++) {
+            Appliance a = appliances[i];
+            if (a.on != on) {
+                continue;
+            }
+            float error = Math.abs(a.powerKw - powerKw);
+            if (error <= Math.max(STEP_THRESHOLD_KW, MATCH_TOLERANCE * a.powerKw) && error < bestError) {
+                best = a;
+                bestError = error;
+            }
+        }
+        return best;
+    }
+
+    /** A free signature, or null when all of them are on. */
+    private Appliance allocate() {
+        Appliance slot;
+        if (applianceCount < MAX_APPLIANCES) {
+            slot = appliances[applianceCount++];
+        } else {
+            // Recycle the least used signature that is currently off
+            slot = null;
+            for (int i = 0; i < applianceCount; i++) {
+                Appliance a = appliances[i];
+                if (!a.on && (slot == null || a.switchCount < slot.switchCount)) {
+                    slot = a;
+                }
+            }
+            if (slot == null) {
+                return null;
+            }
+        }
+        slot.id = nextApplianceId++;
+        slot.on = false;
+        slot.energyKwh = 0;
+        slot.switchCount = 0;
+        return slot;
+    }
+
+    private static void refine(Appliance a, float powerKw, float currentA, float powerFactor) {
+        // Running mean over the first events, then an exponential average
+        float weight = 1f / Math.min(a.switchCount + 1, 10);
+        a.powerKw += weight * (powerKw - a.powerKw);
+        a.currentA += weight * (currentA - a.currentA);
+        a.powerFactor += weight * (powerFactor - a.powerFactor);
+    }
+
+    static String classify(float powerKw, float powerFactor) {
+        boolean resistive = powerFactor >= 0.95f;
+        if (resistive) {
+            if (powerKw >= 1.5f) return "Water heater / kettle";
+            if (powerKw >= 0.5f) return "Heating appliance (iron, rice cooker)";
+            if (powerKw >= 0.1f) return "Resistive load";
+            return "Lighting";
+        }
+        if (powerKw >= 0.5f) return "Air conditioner / pump motor";
+        if (powerKw >= 0.1f) return "Refrigerator / fan";
+        return "Electronics / charger";
+    }
+
+    /** Copies the current signatures, most energy first. */
+    public List<Appliance> getAppliances() {
+        List<Appliance> result = new ArrayList<>();
+        synchronized (stateLock) {
+            for (int i = 0; i < applianceCount; i++) {
+                Appliance copy = new Appliance();
+                copy.copyFrom(appliances[i]);
+                result.add(copy);
+            }
+        }
+        Collections.sort(result, (a, b) -> Double.compare(b.energyKwh, a.energyKwh));
+        return result;
+    }
+
+    public double getUnexplainedEnergyKwh() {
+        synchronized (stateLock) {
+            return unexplainedEnergyKwh;
+        }
+    }
+
+    public long getDroppedSamples() {
+        synchronized (queueLock) {
+            return droppedSamples;
+        }
+    }
+}
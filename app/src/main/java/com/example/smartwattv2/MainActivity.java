@@ -5,6 +5,7 @@ package com.example.smartwattv2;
 import android.Manifest;
 import android.app.AlertDialog;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
@@ -14,6 +15,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -35,10 +37,23 @@ import androidx.preference.PreferenceManager;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.card.MaterialCardView;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
-
+import com.google.android.material.switchmaterial.SwitchMaterial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
@@ -53,19 +68,24 @@ public class MainActivity extends AppCompatActivity {
     private static final String TAG = "SmartWattApp";
     private static final int FETCH_INTERVAL = 1000; // Fetch data every 1 second
     private static final int CONNECTION_TIMEOUT = 5000; // 5 seconds
-    private static final String DEFAULT_IP = "192.168.4.1"; // Default ESP32 AP IP
-    private static final String IP_PREFERENCE_KEY = "ESP32_IP";
+    static final String DEFAULT_IP = "192.168.4.1"; // Default ESP32 AP IP
+    static final String IP_PREFERENCE_KEY = "ESP32_IP";
     private static final int PERMISSION_REQUEST_CODE = 123;
+    private static final String COST_LIMIT_PREFERENCE_KEY = "COST_LIMIT";
+    private static final String TARIFF_PREFERENCE_KEY = "TARIFF_SCHEDULE";
+    private static final String TARIFF_STATE_FILE = "tariff_state.bin";
+    private static final double METER_ENERGY_RESOLUTION = 0.01; // ESP32 reports energy with two decimals
+    private static final double MAX_PLAUSIBLE_POWER = 25.0; // kW
+    private static final String TRACE_DIR = "traces";
 
     // Test variables
     private float testEnergy = 0.0f;
     private Handler testHandler = new Handler(Looper.getMainLooper());
     private final float ENERGY_INCREMENT = 0.1f; // Increase by 0.1 kWh each update
     private boolean isTestMode = false; // Set to true to enable test mode
-    private boolean hasExceededLimit = false;
 
-    private TextView tvVoltage, tvCurrent, tvPower, tvEnergy, tvConnectionStatus;
-    private EditText etConsumptionLimit, etEsp32IpAddress;
+    private TextView tvVoltage, tvCurrent, tvPower, tvEnergy, tvCost, tvConnectionStatus;
+    private EditText etConsumptionLimit, etEsp32IpAddress, etCostLimit, etTariffSchedule;
     private Button btnUpdate, btnSaveIp;
     private MaterialButton btnResetTest;
     private ProgressBar progressBar;
@@ -74,6 +94,8 @@ public class MainActivity extends AppCompatActivity {
     private ImageButton dismissAlert;
     private NotificationHelper notificationHelper;
     private FloatingActionButton fabRecommendations;
+    private MaterialButton btnHistory;
+    private SwitchMaterial switchRecordTrace;
 
     private OkHttpClient client;
     private Handler handler;
@@ -84,6 +106,17 @@ public class MainActivity extends AppCompatActivity {
     private int connectionAttempts = 0;
     private static final int MAX_CONNECTION_ATTEMPTS = 3;
     private float consumptionLimit = 3.6f; // Default value changed to 3.6 kWh
+    private float costLimit = 0f; // 0 disables the cost alert
+    private TariffEngine tariffEngine;
+    private LoadDisaggregator loadDisaggregator;
+    private EnergyIntegrator energyIntegrator;
+    private UsageSnapshot usageSnapshot;
+    private HistoryStore historyStore;
+    // History is written here, off the main thread
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor();
+    private MeterPipeline meterPipeline;
+    private final MeterPipeline.ArrivalClock arrivalClock = new MeterPipeline.ArrivalClock();
+    private volatile TraceRecorder traceRecorder;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -110,6 +143,17 @@ public class MainActivity extends AppCompatActivity {
         setupOkHttpClient();
 
         notificationHelper = new NotificationHelper(this);
+        // Test mode steps energy much faster than the simulated power, so widen the counter tolerance
+        energyIntegrator = new EnergyIntegrator(isTestMode ? 5000 : FETCH_INTERVAL,
+                isTestMode ? ENERGY_INCREMENT : METER_ENERGY_RESOLUTION, 0, MAX_PLAUSIBLE_POWER);
+        loadDisaggregator = new LoadDisaggregator();
+        loadDisaggregator.start();
+
+        try {
+            usageSnapshot = UsageSnapshot.get(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not map usage snapshot, widget will not update", e);
+        }
         handler = new Handler(Looper.getMainLooper());
 
         setupFetchRunnable();
@@ -118,11 +162,23 @@ public class MainActivity extends AppCompatActivity {
 
         String savedIpAddress = sharedPreferences.getString(IP_PREFERENCE_KEY, DEFAULT_IP);
         etEsp32IpAddress.setText(savedIpAddress);
+        openHistory(savedIpAddress);
 
         // Load saved consumption limit if exists
         consumptionLimit = sharedPreferences.getFloat("CONSUMPTION_LIMIT", 3.6f);
         etConsumptionLimit.setText(String.valueOf(consumptionLimit));
 
+        costLimit = sharedPreferences.getFloat(COST_LIMIT_PREFERENCE_KEY, 0f);
+        etCostLimit.setText(String.valueOf(costLimit));
+        initializeTariff();
+
+        meterPipeline = new MeterPipeline(arrivalClock, energyIntegrator, tariffEngine, pipelineListener);
+        meterPipeline.setLimits(consumptionLimit, costLimit);
+        meterPipeline.setLoadDisaggregator(loadDisaggregator);
+        meterPipeline.setHistoryStore(historyStore, historyExecutor);
+        meterPipeline.setSnapshot(usageSnapshot);
+        restoreTariffState();
+
         if (isTestMode) {
             // Disable actual data fetching
             handler.removeCallbacks(fetchRunnable);
@@ -135,6 +191,54 @@ public class MainActivity extends AppCompatActivity {
         Log.i(TAG, "SmartWatt App Initialized");
     }
 
+    private void initializeTariff() {
+        String spec = sharedPreferences.getString(TARIFF_PREFERENCE_KEY, TariffSchedule.DEFAULT_SPEC);
+        TariffSchedule schedule;
+        try {
+            schedule = TariffSchedule.parse(spec);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Saved tariff schedule is invalid, using default: " + e.getMessage());
+            schedule = TariffSchedule.parse(TariffSchedule.DEFAULT_SPEC);
+        }
+        etTariffSchedule.setText(schedule.getSpec());
+        tariffEngine = new TariffEngine(schedule);
+    }
+
+    /**
+     * Restores the billing cycle and the last meter sample, so the first reading
+     * prices the energy used while the app was closed.
+     */
+    private void restoreTariffState() {
+        File stateFile = new File(getFilesDir(), TARIFF_STATE_FILE);
+        if (stateFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(stateFile)))) {
+                tariffEngine.readState(in);
+                meterPipeline.readState(in);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not restore tariff state", e);
+            }
+        }
+        updateCostDisplay();
+    }
+
+    private void saveTariffState() {
+        File stateFile = new File(getFilesDir(), TARIFF_STATE_FILE);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(stateFile)))) {
+            tariffEngine.writeState(out);
+            meterPipeline.writeState(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save tariff state", e);
+        }
+    }
+
+    private void updateCostDisplay() {
+        TariffSchedule schedule = tariffEngine.getSchedule();
+        tvCost.setText(String.format(Locale.US, "Cost this cycle: %s (%.2f kWh)",
+                schedule.formatCost(tariffEngine.getCycleCost()), tariffEngine.getCycleEnergyKwh()));
+    }
+
     private void requestNotificationPermission() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
             if (ActivityCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS)
@@ -171,7 +275,7 @@ public class MainActivity extends AppCompatActivity {
         LinearLayout generalTipsContainer = dialogView.findViewById(R.id.generalTipsContainer);
 
         // Get current energy value
-        float currentEnergy = isTestMode ? testEnergy : 0; // Use actual energy value in non-test mode
+        double currentEnergy = isTestMode ? testEnergy : energyIntegrator.getEnergyKwh();
 
         // Set current status
         titleUsageStatus.setText("Current Usage Status");
@@ -179,6 +283,15 @@ public class MainActivity extends AppCompatActivity {
                 "Current consumption: %.2f kWh\nLimit: %.2f kWh",
                 currentEnergy, consumptionLimit));
 
+        // Add per-appliance recommendations from load disaggregation
+        List<PowerRecommendation.Recommendation> applianceRecs =
+                PowerRecommendation.getApplianceRecommendations(
+                        loadDisaggregator.getAppliances(), System.currentTimeMillis());
+
+        for (PowerRecommendation.Recommendation rec : applianceRecs) {
+            addRecommendationView(recommendationsContainer, rec);
+        }
+
         // Add consumption-based recommendations
         List<PowerRecommendation.Recommendation> consumptionRecs =
                 PowerRecommendation.getConsumptionBasedRecommendations(currentEnergy, consumptionLimit);
@@ -243,7 +356,8 @@ public class MainActivity extends AppCompatActivity {
 
     private void resetTest() {
         testEnergy = 0.0f;
-        hasExceededLimit = false;
+        meterPipeline.resetAlerts();
+        energyIntegrator.reset();
         alertBanner.setVisibility(View.GONE);
         String testData = String.format(Locale.US,
                 "<div id='data'>220.0,5.0,1.1,%.2f</div>", testEnergy);
@@ -272,14 +386,19 @@ public class MainActivity extends AppCompatActivity {
         tvCurrent = findViewById(R.id.tvCurrent);
         tvPower = findViewById(R.id.tvPower);
         tvEnergy = findViewById(R.id.tvEnergy);
+        tvCost = findViewById(R.id.tvCost);
         tvConnectionStatus = findViewById(R.id.tvConnectionStatus);
         etConsumptionLimit = findViewById(R.id.etConsumptionLimit);
         etEsp32IpAddress = findViewById(R.id.etEsp32IpAddress);
+        etCostLimit = findViewById(R.id.etCostLimit);
+        etTariffSchedule = findViewById(R.id.etTariffSchedule);
         btnUpdate = findViewById(R.id.btnUpdate);
         btnSaveIp = findViewById(R.id.btnSaveIp);
         progressBar = findViewById(R.id.progressBar);
         btnResetTest = findViewById(R.id.btnResetTest);
         fabRecommendations = findViewById(R.id.fabRecommendations);
+        btnHistory = findViewById(R.id.btnHistory);
+        switchRecordTrace = findViewById(R.id.switchRecordTrace);
 
         if (isTestMode) {
             btnResetTest.setVisibility(View.VISIBLE);
@@ -287,6 +406,8 @@ public class MainActivity extends AppCompatActivity {
         }
 
         fabRecommendations.setOnClickListener(v -> showRecommendationsDialog());
+        btnHistory.setOnClickListener(v -> startActivity(new Intent(this, HistoryActivity.class)));
+        switchRecordTrace.setOnCheckedChangeListener((v, isChecked) -> setTraceRecording(isChecked));
     }
 
     private void setupFetchRunnable() {
@@ -325,26 +446,147 @@ public class MainActivity extends AppCompatActivity {
         editor.putString(IP_PREFERENCE_KEY, ipAddress);
         editor.apply();
 
+        openHistory(ipAddress);
+
         Toast.makeText(this, "IP Address Saved: " + ipAddress, Toast.LENGTH_SHORT).show();
         Log.i(TAG, "IP Address Updated: " + ipAddress);
     }
 
-    private void checkConsumptionLimit(float currentConsumption) {
-        if (currentConsumption > consumptionLimit) {
-            // Show banner
-            alertText.setText(String.format(Locale.US,
-                    "Warning: Current consumption (%.2f kWh) has exceeded the limit (%.2f kWh)",
-                    currentConsumption, consumptionLimit));
-            alertBanner.setVisibility(View.VISIBLE);
+    private final MeterPipeline.Listener pipelineListener = new MeterPipeline.Listener() {
+        @Override
+        public void onReading(MeterPipeline.Reading reading) {
+            tvVoltage.setText(String.format(Locale.US, "Voltage: %.2f V", reading.voltage));
+            tvCurrent.setText(String.format(Locale.US, "Current: %.2f A", reading.current));
+            tvPower.setText(String.format(Locale.US, "Power: %.2f kW", reading.powerKw));
+            tvEnergy.setText(String.format(Locale.US, "Energy: %.2f kWh", reading.energyKwh));
+            updateCostDisplay();
+            logIntegratorStatus(reading.integratorStatus, reading.meterEnergyKwh);
+
+            Log.d(TAG, String.format("Parsed values - V: %.2f, I: %.2f, P: %.2f, E: %.2f",
+                    reading.voltage, reading.current, reading.powerKw, reading.energyKwh));
+        }
+
+        @Override
+        public void onConsumptionAlert(double energyKwh, float limitKwh) {
+            notificationHelper.showConsumptionAlert(energyKwh, limitKwh);
+        }
+
+        @Override
+        public void onCostAlert(String cost, String costLimit) {
+            notificationHelper.showCostAlert(cost, costLimit);
+        }
 
-            // Show notification only when first exceeding the limit
-            if (!hasExceededLimit) {
-                notificationHelper.showConsumptionAlert(currentConsumption, consumptionLimit);
-                hasExceededLimit = true;
+        @Override
+        public void onWarning(String warning) {
+            if (warning != null) {
+                alertText.setText(warning);
+                alertBanner.setVisibility(View.VISIBLE);
+            } else {
+                alertBanner.setVisibility(View.GONE);
             }
-        } else {
-            alertBanner.setVisibility(View.GONE);
-            hasExceededLimit = false;
+        }
+
+        @Override
+        public void onSnapshotUpdated(UsageSnapshot.Reading snapshot) {
+            UsageWidgetProvider.push(MainActivity.this, snapshot);
+            UsageTileService.requestRefresh(MainActivity.this);
+        }
+
+        @Override
+        public void onHistoryError(IOException e) {
+            Log.e(TAG, "Could not record history", e);
+        }
+    };
+
+    private void openHistory(String meterId) {
+        flushHistory();
+        try {
+            historyStore = HistoryStore.open(this, meterId);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open history for " + meterId, e);
+            historyStore = null;
+        }
+        if (meterPipeline != null) {
+            meterPipeline.setHistoryStore(historyStore, historyExecutor);
+        }
+    }
+
+    /** Queues a flush of the current history behind the appends still pending. */
+    private void flushHistory() {
+        HistoryStore store = historyStore;
+        if (store == null) {
+            return;
+        }
+        historyExecutor.execute(() -> {
+            try {
+                store.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not flush history", e);
+            }
+        });
+    }
+
+    private void logIntegratorStatus(int status, double meterEnergy) {
+        if ((status & EnergyIntegrator.STATUS_RESET) != 0) {
+            Log.w(TAG, "Meter energy counter reset detected, continuing from integrated power");
+        }
+        if ((status & EnergyIntegrator.STATUS_WRAP) != 0) {
+            Log.w(TAG, "Meter energy counter wrapped around");
+        }
+        if ((status & EnergyIntegrator.STATUS_GAP) != 0) {
+            Log.w(TAG, "Sampling gap detected, bridged with meter counter");
+        }
+        if ((status & EnergyIntegrator.STATUS_MISMATCH) != 0) {
+            Log.w(TAG, String.format(Locale.US,
+                    "Meter counter disagrees with integrated power (counter %.3f kWh), using integrated value",
+                    meterEnergy));
+        }
+        if ((status & EnergyIntegrator.STATUS_REJECTED) != 0) {
+            Log.w(TAG, "Sample rejected by energy integrator");
+        }
+    }
+
+    private void setTraceRecording(boolean enabled) {
+        TraceRecorder recorder = traceRecorder;
+        traceRecorder = null;
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close trace", e);
+            }
+        }
+        if (!enabled) {
+            return;
+        }
+
+        File dir = new File(getFilesDir(), TRACE_DIR);
+        String name = new SimpleDateFormat("'trace-'yyyyMMdd-HHmmss'.swt'", Locale.US).format(new Date());
+        File file = new File(dir, name);
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            traceRecorder = new TraceRecorder(file, System.currentTimeMillis(),
+                    SystemClock.elapsedRealtime(), TimeZone.getDefault());
+            Toast.makeText(this, "Recording trace to " + name, Toast.LENGTH_SHORT).show();
+            Log.i(TAG, "Recording trace to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start trace", e);
+            Toast.makeText(this, "Could not start trace: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            switchRecordTrace.setChecked(false);
+        }
+    }
+
+    private void recordTrace(long wallMs, long monoMs, int code, String response) {
+        TraceRecorder recorder = traceRecorder;
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.record(wallMs, monoMs, code, response);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not record trace", e);
         }
     }
 
@@ -375,7 +617,10 @@ public class MainActivity extends AppCompatActivity {
             public void onResponse(Call call, Response response) throws IOException {
                 try {
                     final String responseData = response.body().string();
+                    final long arrivalWallMs = System.currentTimeMillis();
+                    final long arrivalMonoMs = SystemClock.elapsedRealtime();
                     Log.d(TAG, "Full response received: " + responseData);
+                    recordTrace(arrivalWallMs, arrivalMonoMs, response.code(), responseData);
 
                     runOnUiThread(() -> {
                         isConnecting = false;
@@ -384,7 +629,7 @@ public class MainActivity extends AppCompatActivity {
 
                         if (response.isSuccessful()) {
                             try {
-                                updateUI(responseData);
+                                updateUI(responseData, arrivalWallMs, arrivalMonoMs);
                                 tvConnectionStatus.setText("Connected ✓");
                             } catch (Exception e) {
                                 Log.e(TAG, "Error in updateUI: " + e.getMessage());
@@ -404,45 +649,16 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void updateUI(String htmlResponse) {
+        updateUI(htmlResponse, System.currentTimeMillis(), SystemClock.elapsedRealtime());
+    }
+
+    private void updateUI(String htmlResponse, long arrivalWallMs, long arrivalMonoMs) {
         try {
             Log.d(TAG, "Raw HTML response: " + htmlResponse);
 
-            int startIndex = htmlResponse.indexOf("<div id='data'>") + "<div id='data'>".length();
-            int endIndex = htmlResponse.indexOf("</div>", startIndex);
-
-            if (startIndex != -1 && endIndex != -1) {
-                String data = htmlResponse.substring(startIndex, endIndex).trim();
-                Log.d(TAG, "Extracted data: " + data);
-
-                String[] values = data.split(",");
-                Log.d(TAG, "Number of values: " + values.length);
-
-                for (int i = 0; i < values.length; i++) {
-                    Log.d(TAG, "Value " + i + ": '" + values[i].trim() + "'");
-                }
-
-                if (values.length >= 4) {
-                    float voltage = Float.parseFloat(values[0].trim());
-                    float current = Float.parseFloat(values[1].trim());
-                    float power = Float.parseFloat(values[2].trim());
-                    float energy = Float.parseFloat(values[3].trim());
-
-                    tvVoltage.setText(String.format(Locale.US, "Voltage: %.2f V", voltage));
-                    tvCurrent.setText(String.format(Locale.US, "Current: %.2f A", current));
-                    tvPower.setText(String.format(Locale.US, "Power: %.2f kW", power));
-                    tvEnergy.setText(String.format(Locale.US, "Energy: %.2f kWh", energy));
-
-                    // Check consumption limit
-                    checkConsumptionLimit(energy);
-
-                    Log.d(TAG, String.format("Parsed values - V: %.2f, I: %.2f, P: %.2f, E: %.2f",
-                            voltage, current, power, energy));
-                } else {
-                    throw new IllegalArgumentException("Insufficient data values");
-                }
-            } else {
-                throw new IllegalArgumentException("Could not find data in response");
-            }
+            // Same path as trace replay: the pipeline sees the arrival time, not the UI thread's time
+            arrivalClock.set(arrivalWallMs, arrivalMonoMs);
+            meterPipeline.ingest(htmlResponse);
         } catch (Exception e) {
             Log.e(TAG, "Error updating UI: " + e.getMessage());
             throw new IllegalArgumentException("Error processing data: " + e.getMessage());
@@ -495,19 +711,39 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
+        TariffSchedule schedule;
         try {
-            consumptionLimit = Float.parseFloat(limit);
+            schedule = TariffSchedule.parse(etTariffSchedule.getText().toString());
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(this, "Invalid tariff schedule: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        try {
+            String cost = etCostLimit.getText().toString().trim();
+            // Parse both before changing either, so a bad value leaves the old limits in place
+            float newCostLimit = cost.isEmpty() ? 0f : Float.parseFloat(cost);
+            float newConsumptionLimit = Float.parseFloat(limit);
+            costLimit = newCostLimit;
+            consumptionLimit = newConsumptionLimit;
             // Save the new consumption limit
             SharedPreferences.Editor editor = sharedPreferences.edit();
             editor.putFloat("CONSUMPTION_LIMIT", consumptionLimit);
+            editor.putFloat(COST_LIMIT_PREFERENCE_KEY, costLimit);
+            editor.putString(TARIFF_PREFERENCE_KEY, schedule.getSpec());
             editor.apply();
 
+            // Re-price the current billing cycle with the new tariff
+            tariffEngine.setSchedule(schedule);
+            meterPipeline.setLimits(consumptionLimit, costLimit);
+            updateCostDisplay();
+
             Toast.makeText(this, "Consumption limit updated to: " + consumptionLimit + " kWh",
                     Toast.LENGTH_SHORT).show();
 
             if (isTestMode) {
                 // For testing, immediately check if current test value exceeds the new limit
-                checkConsumptionLimit(testEnergy);
+                meterPipeline.checkLimits(testEnergy);
             }
 
             String url = String.format("http://%s/set_time?consumption_limit=%s",
@@ -546,14 +782,25 @@ public class MainActivity extends AppCompatActivity {
             });
 
         } catch (NumberFormatException e) {
-            Toast.makeText(this, "Invalid consumption limit", Toast.LENGTH_SHORT).show();
+            Toast.makeText(this, "Invalid consumption or cost limit", Toast.LENGTH_SHORT).show();
         }
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        saveTariffState();
+        flushHistory();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         handler.removeCallbacks(fetchRunnable);
+        loadDisaggregator.stop();
+        // Queued appends and flushes still run
+        historyExecutor.shutdown();
+        setTraceRecording(false);
         if (isTestMode) {
             testHandler.removeCallbacksAndMessages(null);
         }
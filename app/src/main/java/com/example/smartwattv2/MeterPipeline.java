@@ -0,0 +1,351 @@
+package com.example.smartwattv2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Ingestion path for meter responses: parse, integrate energy, price it,
+ * check the kWh and cost limits, then hand the reading to the optional
+ * consumers: load disaggregation, the history store and the usage snapshot.
+ *
+ * Has no Android dependencies and takes time only from its {@link Clock}, so
+ * the live app and {@link TraceReplayer} run exactly the same code, and a
+ * replay on a virtual clock produces the same alerts as the original run.
+ * What is left to the {@link Listener} is drawing: views, notifications and
+ * the widget and tile.
+ */
+public class MeterPipeline {
+
+    private static final String DATA_START = "<div id='data'>";
+    private static final String DATA_END = "</div>";
+    static final long SURFACE_UPDATE_INTERVAL_MS = 5000; // Widget and tile refresh at most every 5 seconds
+    private static final int STATE_VERSION = 1;
+
+    public interface Clock {
+        /** Wall-clock time, used for tariff periods. */
+        long currentTimeMillis();
+
+        /** Monotonic time, used for energy integration. */
+        long elapsedRealtime();
+    }
+
+    /**
+     * Clock set to the arrival time of each response before it is ingested.
+     * Used live and in replays, so both see identical timestamps.
+     */
+    public static class ArrivalClock implements Clock {
+        private long wallMs;
+        private long monoMs;
+
+        public void set(long wallMs, long monoMs) {
+            this.wallMs = wallMs;
+            this.monoMs = monoMs;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return wallMs;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return monoMs;
+        }
+    }
+
+    public interface Listener {
+        void onReading(Reading reading);
+
+        /** Called once when the kWh limit is first exceeded. */
+        void onConsumptionAlert(double energyKwh, float limitKwh);
+
+        /** Called once when the cycle cost first exceeds the budget. */
+        void onCostAlert(String cost, String costLimit);
+
+        /**
+         * Called on every limit check with the warning text for the alert banner,
+         * or null when within limits, so a dismissed banner comes back with the
+         * next reading that is still over a limit.
+         */
+        void onWarning(String warning);
+
+        /**
+         * Called after the snapshot was written when the widget and tile should
+         * refresh: whenever a limit flag changes, otherwise at most every
+         * {@link #SURFACE_UPDATE_INTERVAL_MS}.
+         */
+        void onSnapshotUpdated(UsageSnapshot.Reading snapshot);
+
+        /** Called on the history executor when a reading could not be recorded. */
+        void onHistoryError(IOException e);
+    }
+
+    public static class Reading {
+        public long timestampMs;
+        public float voltage;
+        public float current;
+        public float powerKw;
+        public double meterEnergyKwh;
+        public double energyKwh;      // Reconciled by the EnergyIntegrator
+        public double cycleCost;
+        public int integratorStatus;  // EnergyIntegrator.STATUS_* flags
+    }
+
+    private final Clock clock;
+    private final EnergyIntegrator energyIntegrator;
+    private final TariffEngine tariffEngine;
+    private final Listener listener;
+    private final Reading reading = new Reading();
+
+    private LoadDisaggregator loadDisaggregator;
+    private HistoryStore historyStore;
+    private Executor historyExecutor;
+    private UsageSnapshot snapshot;
+    private final UsageSnapshot.Reading snapshotReading = new UsageSnapshot.Reading();
+    private long lastSurfaceUpdateMs;
+    private int lastSnapshotFlags;
+
+    // Wall time of the integrator's last sample, or -1
+    private long lastSampleMs = -1;
+    // Integrator sample saved by an earlier run, resumed by the next reading
+    private long resumeMs = -1;
+    private double resumePowerKw, resumeCounterKwh;
+
+    private float consumptionLimit;
+    private float costLimit;
+    private boolean hasExceededLimit;
+    private boolean hasExceededCostLimit;
+
+    public MeterPipeline(Clock clock, EnergyIntegrator energyIntegrator, TariffEngine tariffEngine,
+                         Listener listener) {
+        this.clock = clock;
+        this.energyIntegrator = energyIntegrator;
+        this.tariffEngine = tariffEngine;
+        this.listener = listener;
+    }
+
+    public void setLimits(float consumptionLimit, float costLimit) {
+        this.consumptionLimit = consumptionLimit;
+        this.costLimit = costLimit;
+    }
+
+    /** Feeds every reading to {@code loadDisaggregator}, or to nothing when null. */
+    public void setLoadDisaggregator(LoadDisaggregator loadDisaggregator) {
+        this.loadDisaggregator = loadDisaggregator;
+    }
+
+    /**
+     * Records every reading in {@code historyStore}, or nowhere when null. The
+     * appends run on {@code executor}, so {@link #ingest} never waits for storage.
+     */
+    public void setHistoryStore(HistoryStore historyStore, Executor executor) {
+        this.historyStore = historyStore;
+        this.historyExecutor = executor;
+    }
+
+    /** Writes every reading to {@code snapshot}, or nowhere when null. */
+    public void setSnapshot(UsageSnapshot snapshot) {
+        this.snapshot = snapshot;
+        lastSurfaceUpdateMs = 0;
+    }
+
+    /**
+     * Processes one raw response from the meter.
+     *
+     * @throws IllegalArgumentException if the response cannot be parsed
+     */
+    public Reading ingest(String htmlResponse) {
+        int dataStart = htmlResponse.indexOf(DATA_START);
+        if (dataStart == -1) {
+            throw new IllegalArgumentException("Could not find data in response");
+        }
+        int startIndex = dataStart + DATA_START.length();
+        int endIndex = htmlResponse.indexOf(DATA_END, startIndex);
+        if (endIndex == -1) {
+            throw new IllegalArgumentException("Could not find data in response");
+        }
+
+        String[] values = htmlResponse.substring(startIndex, endIndex).trim().split(",");
+        if (values.length < 4) {
+            throw new IllegalArgumentException("Insufficient data values");
+        }
+
+        float voltage, current, power;
+        double meterEnergy;
+        try {
+            voltage = Float.parseFloat(values[0].trim());
+            current = Float.parseFloat(values[1].trim());
+            power = Float.parseFloat(values[2].trim());
+            // Parse as double: a float meter counter loses precision at large values
+            meterEnergy = Double.parseDouble(values[3].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Error processing data: " + e.getMessage());
+        }
+
+        reading.timestampMs = clock.currentTimeMillis();
+        reading.voltage = voltage;
+        reading.current = current;
+        reading.powerKw = power;
+        reading.meterEnergyKwh = meterEnergy;
+        long monoMs = clock.elapsedRealtime();
+        if (resumeMs >= 0) {
+            if (!energyIntegrator.isStarted() && resumeMs < reading.timestampMs) {
+                // The saved sample, placed on this run's monotonic clock
+                energyIntegrator.resume(monoMs - (reading.timestampMs - resumeMs), resumePowerKw, resumeCounterKwh);
+                lastSampleMs = resumeMs;
+            }
+            resumeMs = -1;
+        }
+        reading.integratorStatus = energyIntegrator.update(monoMs, power, meterEnergy);
+        reading.energyKwh = energyIntegrator.getEnergyKwh();
+
+        // Price only the energy used since the last sample; across a gap, such
+        // as while the app was closed, spread over the time it was used in
+        double deltaKwh = energyIntegrator.getLastDeltaKwh();
+        if ((reading.integratorStatus & EnergyIntegrator.STATUS_GAP) != 0 && lastSampleMs >= 0) {
+            tariffEngine.addEnergy(lastSampleMs, reading.timestampMs, deltaKwh);
+        } else {
+            tariffEngine.addEnergy(reading.timestampMs, deltaKwh);
+        }
+        if (reading.integratorStatus != EnergyIntegrator.STATUS_REJECTED) {
+            lastSampleMs = reading.timestampMs;
+        }
+        reading.cycleCost = tariffEngine.getCycleCost();
+
+        checkLimits(reading.energyKwh);
+
+        if (loadDisaggregator != null) {
+            loadDisaggregator.submit(reading.timestampMs, voltage, current, power);
+        }
+        if (historyStore != null) {
+            recordHistory(historyStore, reading.timestampMs, voltage, current, power, (float) reading.energyKwh);
+        }
+        publishSnapshot();
+
+        listener.onReading(reading);
+        return reading;
+    }
+
+    private void recordHistory(HistoryStore store, long timeMs, float voltage, float current, float power,
+                               float energy) {
+        historyExecutor.execute(() -> {
+            try {
+                store.append(timeMs, voltage, current, power, energy);
+            } catch (IOException e) {
+                listener.onHistoryError(e);
+            }
+        });
+    }
+
+    private void publishSnapshot() {
+        if (snapshot == null) {
+            return;
+        }
+        int flags = (hasExceededLimit ? UsageSnapshot.FLAG_LIMIT_EXCEEDED : 0)
+                | (hasExceededCostLimit ? UsageSnapshot.FLAG_COST_EXCEEDED : 0);
+        long now = reading.timestampMs;
+        snapshot.write(now, reading.voltage, reading.current, reading.powerKw, (float) reading.energyKwh,
+                consumptionLimit, (float) reading.cycleCost, costLimit, flags);
+
+        // Push to the home-screen surfaces on limit changes, otherwise throttled
+        if (flags != lastSnapshotFlags || now - lastSurfaceUpdateMs >= SURFACE_UPDATE_INTERVAL_MS) {
+            lastSnapshotFlags = flags;
+            lastSurfaceUpdateMs = now;
+            if (snapshot.read(snapshotReading)) {
+                listener.onSnapshotUpdated(snapshotReading);
+            }
+        }
+    }
+
+    public void checkLimits(double currentConsumption) {
+        StringBuilder warning = new StringBuilder();
+
+        if (currentConsumption > consumptionLimit) {
+            warning.append(String.format(Locale.US,
+                    "Warning: Current consumption (%.2f kWh) has exceeded the limit (%.2f kWh)",
+                    currentConsumption, consumptionLimit));
+
+            // Alert only when first exceeding the limit
+            if (!hasExceededLimit) {
+                hasExceededLimit = true;
+                listener.onConsumptionAlert(currentConsumption, consumptionLimit);
+            }
+        } else {
+            hasExceededLimit = false;
+        }
+
+        double cycleCost = tariffEngine.getCycleCost();
+        if (costLimit > 0 && cycleCost > costLimit) {
+            TariffSchedule schedule = tariffEngine.getSchedule();
+            if (warning.length() > 0) {
+                warning.append("\n");
+            }
+            warning.append("Warning: Cost this cycle (").append(schedule.formatCost(cycleCost))
+                    .append(") has exceeded the budget (").append(schedule.formatCost(costLimit)).append(")");
+
+            if (!hasExceededCostLimit) {
+                hasExceededCostLimit = true;
+                listener.onCostAlert(schedule.formatCost(cycleCost), schedule.formatCost(costLimit));
+            }
+        } else {
+            hasExceededCostLimit = false;
+        }
+
+        listener.onWarning(warning.length() > 0 ? warning.toString() : null);
+    }
+
+    /**
+     * Writes the integrator's last sample, to be saved with the tariff state so
+     * that the next run prices the energy used while the app was closed.
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(STATE_VERSION);
+        if (resumeMs >= 0) {
+            // Restored, but no reading since
+            out.writeLong(resumeMs);
+            out.writeDouble(resumePowerKw);
+            out.writeDouble(resumeCounterKwh);
+        } else if (energyIntegrator.isStarted() && lastSampleMs >= 0) {
+            out.writeLong(lastSampleMs);
+            out.writeDouble(energyIntegrator.getLastPowerKw());
+            out.writeDouble(energyIntegrator.getLastCounterKwh());
+        } else {
+            out.writeLong(-1);
+            out.writeDouble(0);
+            out.writeDouble(0);
+        }
+    }
+
+    /**
+     * Restores a sample written by {@link #writeState}. The next reading takes
+     * the energy used since then as a gap and prices it slot by slot.
+     */
+    public void readState(DataInputStream in) throws IOException {
+        if (in.readInt() != STATE_VERSION) {
+            throw new IOException("Unsupported pipeline state version");
+        }
+        long timeMs = in.readLong();
+        double powerKw = in.readDouble();
+        double counterKwh = in.readDouble();
+        resumeMs = timeMs;
+        resumePowerKw = powerKw;
+        resumeCounterKwh = counterKwh;
+    }
+
+    /** Clears alert state, e.g. when the test meter is reset. */
+    public void resetAlerts() {
+        hasExceededLimit = false;
+        hasExceededCostLimit = false;
+    }
+
+    public boolean hasExceededLimit() {
+        return hasExceededLimit;
+    }
+
+    public boolean hasExceededCostLimit() {
+        return hasExceededCostLimit;
+    }
+}
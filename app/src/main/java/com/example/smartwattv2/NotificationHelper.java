@@ -23,6 +23,7 @@ public class NotificationHelper {
     private static final String CHANNEL_NAME = "Power Monitor Alerts";
     private static final String CHANNEL_DESC = "Notifications for power consumption alerts";
     private static final int NOTIFICATION_ID = 1001;
+    private static final int COST_NOTIFICATION_ID = 1002;
 
     private Context context;
     private NotificationManager notificationManager;
@@ -52,7 +53,27 @@ public class NotificationHelper {
         }
     }
 
-    public void showConsumptionAlert(float currentConsumption, float limit) {
+    public void showConsumptionAlert(double currentConsumption, float limit) {
+        showAlert(NOTIFICATION_ID,
+                "⚠️ Power Consumption Alert!",
+                String.format(Locale.US,
+                        "Consumption: %.2f kWh has exceeded limit: %.2f kWh",
+                        currentConsumption, limit),
+                String.format(Locale.US,
+                        "Your power consumption (%.2f kWh) has exceeded the set limit (%.2f kWh). " +
+                                "Please check your power usage.",
+                        currentConsumption, limit));
+    }
+
+    public void showCostAlert(String currentCost, String costLimit) {
+        showAlert(COST_NOTIFICATION_ID,
+                "⚠️ Electricity Budget Alert!",
+                "Cost: " + currentCost + " has exceeded budget: " + costLimit,
+                "Your electricity cost this billing cycle (" + currentCost + ") has exceeded " +
+                        "the set budget (" + costLimit + "). Consider shifting usage to off-peak hours.");
+    }
+
+    private void showAlert(int notificationId, String title, String text, String bigText) {
         // Create intent for notification tap action
         Intent intent = new Intent(context, MainActivity.class);
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
@@ -67,15 +88,9 @@ public class NotificationHelper {
         // Build the notification
         NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
                 .setSmallIcon(R.drawable.ic_warning)
-                .setContentTitle("⚠️ Power Consumption Alert!")
-                .setContentText(String.format(Locale.US,
-                        "Consumption: %.2f kWh has exceeded limit: %.2f kWh",
-                        currentConsumption, limit))
-                .setStyle(new NotificationCompat.BigTextStyle()
-                        .bigText(String.format(Locale.US,
-                                "Your power consumption (%.2f kWh) has exceeded the set limit (%.2f kWh). " +
-                                        "Please check your power usage.",
-                                currentConsumption, limit)))
+                .setContentTitle(title)
+                .setContentText(text)
+                .setStyle(new NotificationCompat.BigTextStyle().bigText(bigText))
                 .setPriority(NotificationCompat.PRIORITY_HIGH)
                 .setCategory(NotificationCompat.CATEGORY_ALARM)
                 .setVibrate(new long[]{0, 500, 200, 500})
@@ -97,7 +112,7 @@ public class NotificationHelper {
             NotificationManagerCompat notificationManagerCompat = NotificationManagerCompat.from(context);
             if (ActivityCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS)
                     == PackageManager.PERMISSION_GRANTED) {
-                notificationManagerCompat.notify(NOTIFICATION_ID, builder.build());
+                notificationManagerCompat.notify(notificationId, builder.build());
             }
         } catch (Exception e) {
             e.printStackTrace();
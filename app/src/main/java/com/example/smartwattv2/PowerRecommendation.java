@@ -2,6 +2,7 @@ package com.example.smartwattv2;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class PowerRecommendation {
 
@@ -121,6 +122,63 @@ public class PowerRecommendation {
         return recommendations;
     }
 
+    public static List<Recommendation> getApplianceRecommendations(List<LoadDisaggregator.Appliance> appliances,
+                                                                   long nowMs) {
+        List<Recommendation> recommendations = new ArrayList<>();
+
+        double totalEnergy = 0;
+        for (LoadDisaggregator.Appliance appliance : appliances) {
+            totalEnergy += appliance.energyKwh;
+        }
+
+        for (LoadDisaggregator.Appliance appliance : appliances) {
+            if (appliance.switchCount == 0) {
+                continue;
+            }
+            double share = totalEnergy > 0 ? appliance.energyKwh / totalEnergy * 100 : 0;
+
+            StringBuilder description = new StringBuilder();
+            description.append(String.format(Locale.US,
+                    "Draws about %.2f kW. Used %.2f kWh (%.0f%% of detected appliance energy), switched on %d time%s.",
+                    appliance.powerKw, appliance.energyKwh, share,
+                    appliance.switchCount, appliance.switchCount == 1 ? "" : "s"));
+
+            if (appliance.on) {
+                long minutes = (nowMs - appliance.onSinceMs) / 60000;
+                description.append(String.format(Locale.US, "\nCurrently ON for %dh %02dm.", minutes / 60, minutes % 60));
+            }
+            description.append("\n").append(getApplianceAdvice(appliance));
+
+            recommendations.add(new Recommendation(
+                    String.format(Locale.US, "Appliance #%d: %s", appliance.id, appliance.label),
+                    description.toString(),
+                    appliance.on ? "Appliance (ON)" : "Appliance"
+            ));
+        }
+
+        return recommendations;
+    }
+
+    private static String getApplianceAdvice(LoadDisaggregator.Appliance appliance) {
+        if (appliance.powerFactor < 0.95f) {
+            if (appliance.powerKw >= 0.5f) {
+                return "• Raise the thermostat setpoint by 1-2°C\n" +
+                        "• Clean filters and check for long continuous run times";
+            }
+            return "• Check door seals and defrost regularly\n" +
+                    "• Frequent cycling can point to poor ventilation around the unit";
+        }
+        if (appliance.powerKw >= 1.5f) {
+            return "• Heat only the water you need\n" +
+                    "• Run it during off-peak hours or on a timer";
+        }
+        if (appliance.powerKw >= 0.5f) {
+            return "• Batch usage instead of frequent short runs\n" +
+                    "• Switch off as soon as it is no longer needed";
+        }
+        return "• Switch off when the room is unoccupied";
+    }
+
     public static String getSuggestedLimit(float averageUsage) {
         if (averageUsage < 2) {
             return "Suggested limit: 3 kWh (Suitable for small apartments with minimal appliance usage)";
@@ -0,0 +1,569 @@
+package com.example.smartwattv2;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Compressed columnar block of up to {@link #MAX_SAMPLES} meter samples.
+ *
+ * A block is a fixed header followed by one bit stream per column. The header
+ * holds the time range, sample count and the min, max, sum and count of the
+ * known values of every column, so range queries and aggregations can use or
+ * skip a block without decoding it. Unknown values (NaN) are stored but left
+ * out of the stats. Columns are decoded independently, so a query on power
+ * never touches voltage or current.
+ *
+ * Timestamps are stored as delta-of-deltas, as in Facebook's Gorilla. Each
+ * value column picks one of two encodings per block:
+ * <ul>
+ *   <li>Decimal: the meter reports short decimals ("230.1", "4.562"), whose
+ *   float bits XOR poorly. If the column's values round-trip through
+ *   {@code k / 10^scale}, the deltas of {@code k} are stored instead, with
+ *   values that do not round-trip (NaN) stored verbatim as exceptions.</li>
+ *   <li>XOR: Gorilla's XOR of each float with the previous one, for columns
+ *   that are not short decimals.</li>
+ * </ul>
+ *
+ * Header layout (little endian):
+ * <pre>
+ *   0  long   first timestamp
+ *   8  long   last timestamp
+ *  16  int    sample count
+ *  20  int    CRC32 of the column streams
+ *  24  int[5] byte length of the time, voltage, current, power and energy streams
+ *  44  per value column: float min, float max, double sum, int count of known values
+ * </pre>
+ */
+public class SampleBlock {
+
+    public static final int VOLTAGE = 0;
+    public static final int CURRENT = 1;
+    public static final int POWER = 2;
+    public static final int ENERGY = 3;
+    public static final int COLUMNS = 4;
+
+    public static final int MAX_SAMPLES = 4096;
+
+    /** Marks a value of a decimal column that is not stored as a scaled integer. */
+    public static final int NOT_SCALED = Integer.MIN_VALUE;
+
+    static final int HEADER_SIZE = 44 + COLUMNS * 20;
+
+    private static final int START_OFFSET = 0;
+    private static final int END_OFFSET = 8;
+    private static final int COUNT_OFFSET = 16;
+    private static final int CRC_OFFSET = 20;
+    private static final int LENGTHS_OFFSET = 24;
+    private static final int STATS_OFFSET = 44;
+    private static final int STATS_SIZE = 20;
+    private static final int STREAMS = COLUMNS + 1;
+
+    // Value stream mode, written in the first 3 bits: 0..6 is a decimal scale
+    private static final int MODE_XOR = 7;
+    private static final int MAX_SCALE = 6;
+    private static final double[] POW10 = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+    private static final double MAX_SCALED = 1 << 30;
+
+    // Worst case per sample: 4 + 64 bits of time, 2 + 10 + 32 bits per value
+    private static final int MAX_TIME_BYTES = (MAX_SAMPLES * 68 + 7) / 8;
+    private static final int MAX_VALUE_BYTES = (MAX_SAMPLES * 44 + 3 + 7) / 8;
+    static final int MAX_SIZE = HEADER_SIZE + MAX_TIME_BYTES + COLUMNS * MAX_VALUE_BYTES;
+
+    public static long getStartMs(ByteBuffer block) {
+        return block.getLong(START_OFFSET);
+    }
+
+    public static long getEndMs(ByteBuffer block) {
+        return block.getLong(END_OFFSET);
+    }
+
+    public static int getCount(ByteBuffer block) {
+        return block.getInt(COUNT_OFFSET);
+    }
+
+    public static float getMin(ByteBuffer block, int column) {
+        return block.getFloat(STATS_OFFSET + column * STATS_SIZE);
+    }
+
+    public static float getMax(ByteBuffer block, int column) {
+        return block.getFloat(STATS_OFFSET + column * STATS_SIZE + 4);
+    }
+
+    /** Sum of the known values of {@code column}. */
+    public static double getSum(ByteBuffer block, int column) {
+        return block.getDouble(STATS_OFFSET + column * STATS_SIZE + 8);
+    }
+
+    /** Number of samples with a known value in {@code column}. */
+    public static int getKnownCount(ByteBuffer block, int column) {
+        return block.getInt(STATS_OFFSET + column * STATS_SIZE + 16);
+    }
+
+    static boolean isKnown(float value) {
+        return !Float.isNaN(value) && !Float.isInfinite(value);
+    }
+
+    /** Total size of the block whose header is at the start of {@code block}, or -1 if it is malformed. */
+    static int getSize(ByteBuffer block) {
+        int count = getCount(block);
+        if (count <= 0 || count > MAX_SAMPLES) {
+            return -1;
+        }
+        int size = HEADER_SIZE;
+        for (int stream = 0; stream < STREAMS; stream++) {
+            int length = block.getInt(LENGTHS_OFFSET + stream * 4);
+            if (length < 0 || length > MAX_TIME_BYTES) {
+                return -1;
+            }
+            size += length;
+        }
+        return size;
+    }
+
+    /** Checks the CRC of a complete block backed by an array. */
+    static boolean isIntact(ByteBuffer block) {
+        CRC32 crc = new CRC32();
+        crc.update(block.array(), block.arrayOffset() + HEADER_SIZE, getSize(block) - HEADER_SIZE);
+        return (int) crc.getValue() == block.getInt(CRC_OFFSET);
+    }
+
+    /**
+     * Collects samples for one block. Adding is O(1); the columns are encoded
+     * when the block is written, so each column can pick its best encoding.
+     */
+    public static class Encoder {
+        private final long[] times = new long[MAX_SAMPLES];
+        private final float[][] values = new float[COLUMNS][MAX_SAMPLES];
+        private final float[] min = new float[COLUMNS];
+        private final float[] max = new float[COLUMNS];
+        private final double[] sum = new double[COLUMNS];
+        private final int[] known = new int[COLUMNS];
+        private int count;
+
+        private final BitWriter bits = new BitWriter(MAX_TIME_BYTES);
+        private final CRC32 crc = new CRC32();
+
+        public Encoder() {
+            reset();
+        }
+
+        public void reset() {
+            count = 0;
+            for (int c = 0; c < COLUMNS; c++) {
+                min[c] = Float.POSITIVE_INFINITY;
+                max[c] = Float.NEGATIVE_INFINITY;
+                sum[c] = 0;
+                known[c] = 0;
+            }
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean isFull() {
+            return count == MAX_SAMPLES;
+        }
+
+        public long getStartMs() {
+            return times[0];
+        }
+
+        public long getEndMs() {
+            return times[count - 1];
+        }
+
+        /** Adds a sample; timestamps must not decrease. */
+        public void add(long timeMs, float voltage, float current, float power, float energy) {
+            times[count] = timeMs;
+            addValue(VOLTAGE, voltage);
+            addValue(CURRENT, current);
+            addValue(POWER, power);
+            addValue(ENERGY, energy);
+            count++;
+        }
+
+        private void addValue(int column, float value) {
+            values[column][count] = value;
+            if (!isKnown(value)) {
+                return;
+            }
+            if (value < min[column]) {
+                min[column] = value;
+            }
+            if (value > max[column]) {
+                max[column] = value;
+            }
+            sum[column] += value;
+            known[column]++;
+        }
+
+        /**
+         * Writes the block at the position of {@code out}, which needs
+         * {@link #MAX_SIZE} bytes of room, and returns its size.
+         */
+        public int writeTo(ByteBuffer out) {
+            int base = out.position();
+            out.position(base + HEADER_SIZE);
+            crc.reset();
+
+            bits.reset();
+            encodeTimes();
+            out.putInt(base + LENGTHS_OFFSET, bits.writeTo(out, crc));
+            for (int c = 0; c < COLUMNS; c++) {
+                bits.reset();
+                int mode = chooseMode(values[c]);
+                bits.write(mode, 3);
+                if (mode == MODE_XOR) {
+                    encodeXor(values[c]);
+                } else {
+                    encodeDecimal(values[c], mode);
+                }
+                out.putInt(base + LENGTHS_OFFSET + (c + 1) * 4, bits.writeTo(out, crc));
+                int stats = base + STATS_OFFSET + c * STATS_SIZE;
+                out.putFloat(stats, min[c]);
+                out.putFloat(stats + 4, max[c]);
+                out.putDouble(stats + 8, sum[c]);
+                out.putInt(stats + 16, known[c]);
+            }
+
+            out.putLong(base + START_OFFSET, times[0]);
+            out.putLong(base + END_OFFSET, times[count - 1]);
+            out.putInt(base + COUNT_OFFSET, count);
+            out.putInt(base + CRC_OFFSET, (int) crc.getValue());
+            return out.position() - base;
+        }
+
+        private void encodeTimes() {
+            long delta = 0;
+            for (int n = 1; n < count; n++) {
+                long nextDelta = times[n] - times[n - 1];
+                long dod = nextDelta - delta;
+                delta = nextDelta;
+                if (dod == 0) {
+                    bits.write(0, 1);
+                } else if (dod >= -63 && dod <= 64) {
+                    bits.write(0b10, 2);
+                    bits.write(dod + 63, 7);
+                } else if (dod >= -255 && dod <= 256) {
+                    bits.write(0b110, 3);
+                    bits.write(dod + 255, 9);
+                } else if (dod >= -2047 && dod <= 2048) {
+                    bits.write(0b1110, 4);
+                    bits.write(dod + 2047, 12);
+                } else {
+                    bits.write(0b1111, 4);
+                    bits.write(dod >>> 32, 32);
+                    bits.write(dod, 32);
+                }
+            }
+        }
+
+        /** Smallest decimal scale that fits the column, or XOR if it has too many misfits. */
+        private int chooseMode(float[] column) {
+            int scale = 0;
+            int exceptions = 0;
+            for (int n = 0; n < count; n++) {
+                float value = column[n];
+                if (!isKnown(value)) {
+                    exceptions++;
+                    continue;
+                }
+                while (!fitsScale(value, scale)) {
+                    if (++scale > MAX_SCALE) {
+                        return MODE_XOR;
+                    }
+                }
+            }
+            return exceptions * 8 > count ? MODE_XOR : scale;
+        }
+
+        private void encodeDecimal(float[] column, int scale) {
+            long last = 0;
+            for (int n = 0; n < count; n++) {
+                float value = column[n];
+                if (!fitsScale(value, scale)) {
+                    // Stored verbatim; does not move the base for the next delta
+                    bits.write(0b11111, 5);
+                    bits.write(Float.floatToRawIntBits(value), 32);
+                    continue;
+                }
+                long k = Math.round(value * POW10[scale]);
+                long delta = k - last;
+                last = k;
+                if (delta == 0) {
+                    bits.write(0, 1);
+                } else if (delta >= -8 && delta <= 7) {
+                    bits.write(0b10, 2);
+                    bits.write(delta + 8, 4);
+                } else if (delta >= -128 && delta <= 127) {
+                    bits.write(0b110, 3);
+                    bits.write(delta + 128, 8);
+                } else if (delta >= -32768 && delta <= 32767) {
+                    bits.write(0b1110, 4);
+                    bits.write(delta + 32768, 16);
+                } else {
+                    bits.write(0b11110, 5);
+                    bits.write(delta, 32);
+                }
+            }
+        }
+
+        private void encodeXor(float[] column) {
+            int last = Float.floatToRawIntBits(column[0]);
+            int lastLeading = -1;
+            int lastTrailing = 0;
+            bits.write(last, 32);
+            for (int n = 1; n < count; n++) {
+                int value = Float.floatToRawIntBits(column[n]);
+                int xor = value ^ last;
+                last = value;
+                if (xor == 0) {
+                    bits.write(0, 1);
+                    continue;
+                }
+                int leading = Integer.numberOfLeadingZeros(xor);
+                int trailing = Integer.numberOfTrailingZeros(xor);
+                if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+                    // Meaningful bits fit in the previous window
+                    bits.write(0b10, 2);
+                    bits.write(xor >>> lastTrailing, 32 - lastLeading - lastTrailing);
+                } else {
+                    int length = 32 - leading - trailing;
+                    bits.write(0b11, 2);
+                    bits.write(leading, 5);
+                    bits.write(length - 1, 5);
+                    bits.write(xor >>> trailing, length);
+                    lastLeading = leading;
+                    lastTrailing = trailing;
+                }
+            }
+        }
+    }
+
+    private static boolean fitsScale(float value, int scale) {
+        double scaled = value * POW10[scale];
+        if (!(Math.abs(scaled) < MAX_SCALED)) {
+            return false;
+        }
+        return Float.floatToRawIntBits(fromScaled(Math.round(scaled), scale)) == Float.floatToRawIntBits(value);
+    }
+
+    private static float fromScaled(long k, int scale) {
+        return (float) (k / POW10[scale]);
+    }
+
+    /** Decodes the time stream and selected value columns of a block. */
+    public static class Decoder {
+        public final long[] times = new long[MAX_SAMPLES];
+        public final float[][] values = new float[COLUMNS][MAX_SAMPLES];
+        /** Decimal scale of each decoded column, or -1 if it is XOR encoded. */
+        public final int[] scales = new int[COLUMNS];
+        /**
+         * For decimal columns, each value times 10^scale as stored, or
+         * {@link #NOT_SCALED} for a value kept verbatim.
+         */
+        public final int[][] scaled = new int[COLUMNS][MAX_SAMPLES];
+        public int count;
+
+        private final BitReader bits = new BitReader();
+
+        /**
+         * @param block       heap buffer with the block at its start
+         * @param columnMask  bit {@code 1 << column} set for every column to decode
+         */
+        public void decode(ByteBuffer block, int columnMask) {
+            byte[] bytes = block.array();
+            int offset = block.arrayOffset() + HEADER_SIZE;
+            count = getCount(block);
+
+            int length = block.getInt(LENGTHS_OFFSET);
+            bits.reset(bytes, offset, length);
+            decodeTimes(getStartMs(block));
+            offset += length;
+
+            for (int c = 0; c < COLUMNS; c++) {
+                length = block.getInt(LENGTHS_OFFSET + (c + 1) * 4);
+                if ((columnMask & (1 << c)) != 0) {
+                    bits.reset(bytes, offset, length);
+                    int mode = (int) bits.read(3);
+                    if (mode == MODE_XOR) {
+                        scales[c] = -1;
+                        decodeXor(values[c]);
+                    } else {
+                        scales[c] = mode;
+                        decodeDecimal(values[c], scaled[c], mode);
+                    }
+                }
+                offset += length;
+            }
+        }
+
+        private void decodeTimes(long startMs) {
+            BitReader in = bits;
+            long time = startMs;
+            long delta = 0;
+            times[0] = time;
+            for (int n = 1; n < count; n++) {
+                switch (in.readPrefix(4)) {
+                    case 0:
+                        break;
+                    case 1:
+                        delta += in.read(7) - 63;
+                        break;
+                    case 2:
+                        delta += in.read(9) - 255;
+                        break;
+                    case 3:
+                        delta += in.read(12) - 2047;
+                        break;
+                    default:
+                        delta += (in.read(32) << 32) | in.read(32);
+                        break;
+                }
+                time += delta;
+                times[n] = time;
+            }
+        }
+
+        private void decodeDecimal(float[] out, int[] outScaled, int scale) {
+            BitReader in = bits;
+            long k = 0;
+            float value = 0;
+            for (int n = 0; n < count; n++) {
+                switch (in.readPrefix(5)) {
+                    case 0:
+                        out[n] = value;
+                        outScaled[n] = (int) k;
+                        continue;
+                    case 1:
+                        k += in.read(4) - 8;
+                        break;
+                    case 2:
+                        k += in.read(8) - 128;
+                        break;
+                    case 3:
+                        k += in.read(16) - 32768;
+                        break;
+                    case 4:
+                        k += (int) in.read(32);
+                        break;
+                    default:
+                        out[n] = Float.intBitsToFloat((int) in.read(32));
+                        outScaled[n] = NOT_SCALED;
+                        continue;
+                }
+                value = fromScaled(k, scale);
+                out[n] = value;
+                outScaled[n] = (int) k;
+            }
+        }
+
+        private void decodeXor(float[] out) {
+            BitReader in = bits;
+            int value = (int) in.read(32);
+            int leading = 0;
+            int length = 32;
+            out[0] = Float.intBitsToFloat(value);
+            for (int n = 1; n < count; n++) {
+                int prefix = in.readPrefix(2);
+                if (prefix != 0) {
+                    if (prefix == 2) {
+                        leading = (int) in.read(5);
+                        length = (int) in.read(5) + 1;
+                    }
+                    value ^= (int) in.read(length) << (32 - leading - length);
+                }
+                out[n] = Float.intBitsToFloat(value);
+            }
+        }
+    }
+
+    /** MSB-first bit stream into a fixed array. */
+    private static final class BitWriter {
+        private final byte[] bytes;
+        private int length;     // Completed bytes
+        private long pending;   // Low pendingBits bits not yet written
+        private int pendingBits;
+
+        BitWriter(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void reset() {
+            length = 0;
+            pending = 0;
+            pendingBits = 0;
+        }
+
+        /** Writes the low {@code bits} bits of {@code value}, 1 to 32 at a time. */
+        void write(long value, int bits) {
+            pending = (pending << bits) | (value & ((1L << bits) - 1));
+            pendingBits += bits;
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                bytes[length++] = (byte) (pending >>> pendingBits);
+            }
+        }
+
+        /** Copies the stream out, padding the last byte with zeros, and returns its length in bytes. */
+        int writeTo(ByteBuffer out, CRC32 crc) {
+            if (pendingBits > 0) {
+                bytes[length++] = (byte) (pending << (8 - pendingBits));
+                pendingBits = 0;
+            }
+            out.put(bytes, 0, length);
+            crc.update(bytes, 0, length);
+            return length;
+        }
+    }
+
+    /** MSB-first reader over part of an array; reads past the end return zeros. */
+    private static final class BitReader {
+        private byte[] bytes;
+        private int position;
+        private int end;
+        private long buffer;
+        private int bufferBits;
+
+        void reset(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            position = offset;
+            end = offset + length;
+            buffer = 0;
+            bufferBits = 0;
+        }
+
+        /** Reads 1 to 32 bits. */
+        long read(int bits) {
+            if (bufferBits < bits) {
+                refill();
+            }
+            bufferBits -= bits;
+            return (buffer >>> bufferBits) & ((1L << bits) - 1);
+        }
+
+        /**
+         * Reads a unary prefix: the number of 1 bits before the first 0, up to
+         * {@code max}. The 0 is consumed too, unless {@code max} ones were read.
+         */
+        int readPrefix(int max) {
+            if (bufferBits < max) {
+                refill();
+            }
+            int window = (int) (buffer >>> (bufferBits - max)) << (32 - max);
+            int ones = Math.min(Integer.numberOfLeadingZeros(~window), max);
+            bufferBits -= ones < max ? ones + 1 : max;
+            return ones;
+        }
+
+        private void refill() {
+            // Top up to 57..64 bits so most reads need no refill at all
+            while (bufferBits <= 56) {
+                buffer = (buffer << 8) | (position < end ? bytes[position] & 0xFF : 0);
+                position++;
+                bufferBits += 8;
+            }
+        }
+    }
+}
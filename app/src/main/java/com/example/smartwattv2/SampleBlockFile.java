@@ -0,0 +1,375 @@
+package com.example.smartwattv2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only file of {@link SampleBlock}s with an in-memory index of block time ranges.
+ *
+ * The newest, still filling block is kept in an {@link SampleBlock.Encoder},
+ * and its samples are appended as raw records to a journal next to the file,
+ * {@link #JOURNAL_BATCH} at a time or on {@link #flush()}. Once the block is
+ * full it is written to the file, once, and the journal is emptied. On open
+ * the journal is replayed into the open block, and the CRC of the last block
+ * lets one torn by a crash be dropped; its samples are still in the journal.
+ * Readers see the open block as the last block without it being written.
+ */
+public class SampleBlockFile implements Closeable {
+
+    private static final int MAGIC = 0x5357424B; // "SWBK"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int JOURNAL_RECORD_SIZE = 24; // long time, float voltage, current, power, energy
+    static final int JOURNAL_BATCH = 64;
+
+    /** Count, min, max and sum of the known values of one column over a time range. */
+    public static class Aggregate {
+        public long count;      // Samples with a known value; NaN readings are left out
+        public float min, max;
+        public double sum;
+        public int blocksDecoded;
+        public int blocksSkipped;
+
+        void clear() {
+            count = 0;
+            min = Float.POSITIVE_INFINITY;
+            max = Float.NEGATIVE_INFINITY;
+            sum = 0;
+            blocksDecoded = 0;
+            blocksSkipped = 0;
+        }
+
+        public double getMean() {
+            return count > 0 ? sum / count : Double.NaN;
+        }
+    }
+
+    private final FileChannel channel;
+    private final FileChannel journal;
+    private final ByteBuffer journalBuffer =
+            ByteBuffer.allocate(JOURNAL_BATCH * JOURNAL_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long journalSize;
+    private final SampleBlock.Encoder openBlock = new SampleBlock.Encoder();
+    private final ByteBuffer blockBuffer =
+            ByteBuffer.allocate(SampleBlock.MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer headerBuffer =
+            ByteBuffer.allocate(SampleBlock.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final SampleBlock.Decoder decoder = new SampleBlock.Decoder();
+
+    // Index of closed blocks; the open block follows at openOffset
+    private long[] offsets = new long[64];
+    private long[] starts = new long[64];
+    private long[] ends = new long[64];
+    private int closedBlocks;
+    private long openOffset = FILE_HEADER_SIZE;
+
+    public SampleBlockFile(File file) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        FileChannel journal = null;
+        try {
+            journal = new RandomAccessFile(new File(file.getPath() + "-journal"), "rw").getChannel();
+            load();
+            replayJournal(journal);
+        } catch (IOException e) {
+            channel.close();
+            if (journal != null) {
+                journal.close();
+            }
+            throw e;
+        }
+        this.journal = journal;
+    }
+
+    private void load() throws IOException {
+        ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.read(fileHeader, 0) < FILE_HEADER_SIZE) {
+            channel.truncate(0);
+            fileHeader.clear();
+            fileHeader.putInt(MAGIC).putInt(VERSION).flip();
+            channel.write(fileHeader, 0);
+            return;
+        }
+        if (fileHeader.getInt(0) != MAGIC || fileHeader.getInt(4) != VERSION) {
+            throw new IOException("Not a sample block file");
+        }
+
+        long size = channel.size();
+        long position = FILE_HEADER_SIZE;
+        while (position + SampleBlock.HEADER_SIZE <= size) {
+            if (readHeader(position) < 0) {
+                break;
+            }
+            int blockSize = SampleBlock.getSize(headerBuffer);
+            if (blockSize < 0 || blockSize > SampleBlock.MAX_SIZE || position + blockSize > size) {
+                break;
+            }
+            addToIndex(position, SampleBlock.getStartMs(headerBuffer), SampleBlock.getEndMs(headerBuffer));
+            position += blockSize;
+        }
+        // Drop whatever a crash left after the last complete block
+        channel.truncate(position);
+        openOffset = position;
+
+        // Blocks are written once at the end, so only the last can be torn
+        if (closedBlocks > 0) {
+            int last = closedBlocks - 1;
+            read(last, blockBuffer);
+            if (!SampleBlock.isIntact(blockBuffer)) {
+                closedBlocks--;
+                openOffset = offsets[last];
+                channel.truncate(openOffset);
+            }
+        }
+    }
+
+    /**
+     * Fills the open block from the journal. Records not newer than the last
+     * block are already in it: a crash came between writing the block and
+     * emptying the journal.
+     */
+    private void replayJournal(FileChannel journal) throws IOException {
+        long lastTime = closedBlocks > 0 ? ends[closedBlocks - 1] : Long.MIN_VALUE;
+        long size = journal.size() / JOURNAL_RECORD_SIZE * JOURNAL_RECORD_SIZE;
+        ByteBuffer records = blockBuffer;
+        long position = 0;
+        while (position < size) {
+            records.clear();
+            records.limit((int) Math.min(records.capacity() / JOURNAL_RECORD_SIZE * JOURNAL_RECORD_SIZE,
+                    size - position));
+            if (!readFully(journal, records, position)) {
+                break;
+            }
+            for (int offset = 0; offset < records.limit(); offset += JOURNAL_RECORD_SIZE) {
+                long time = records.getLong(offset);
+                if (time > lastTime && !openBlock.isFull()) {
+                    openBlock.add(time, records.getFloat(offset + 8), records.getFloat(offset + 12),
+                            records.getFloat(offset + 16), records.getFloat(offset + 20));
+                    lastTime = time;
+                }
+            }
+            position += records.limit();
+        }
+        // Drop a record torn by a crash, so new ones stay aligned
+        journal.truncate(size);
+        journalSize = size;
+    }
+
+    /** Fills the rest of {@code buffer} from {@code position}; false at the end of the file. */
+    private static boolean readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, start + buffer.position()) <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addToIndex(long offset, long startMs, long endMs) {
+        if (closedBlocks == offsets.length) {
+            offsets = Arrays.copyOf(offsets, closedBlocks * 2);
+            starts = Arrays.copyOf(starts, closedBlocks * 2);
+            ends = Arrays.copyOf(ends, closedBlocks * 2);
+        }
+        offsets[closedBlocks] = offset;
+        starts[closedBlocks] = startMs;
+        ends[closedBlocks] = endMs;
+        closedBlocks++;
+    }
+
+    /** Appends a sample; its timestamp must not be older than the last one. */
+    public void append(long timeMs, float voltage, float current, float power, float energy) throws IOException {
+        openBlock.add(timeMs, voltage, current, power, energy);
+        if (openBlock.isFull()) {
+            sealOpenBlock();
+            return;
+        }
+        journalBuffer.putLong(timeMs).putFloat(voltage).putFloat(current).putFloat(power).putFloat(energy);
+        if (!journalBuffer.hasRemaining()) {
+            flush();
+        }
+    }
+
+    /** Writes the samples appended since the last flush to the journal. */
+    public void flush() throws IOException {
+        journalBuffer.flip();
+        while (journalBuffer.hasRemaining()) {
+            journalSize += journal.write(journalBuffer, journalSize);
+        }
+        journalBuffer.clear();
+    }
+
+    private void sealOpenBlock() throws IOException {
+        blockBuffer.clear();
+        openBlock.writeTo(blockBuffer);
+        blockBuffer.flip();
+        long position = openOffset;
+        while (blockBuffer.hasRemaining()) {
+            position += channel.write(blockBuffer, position);
+        }
+        // The block has to be on disk before its samples leave the journal
+        channel.force(false);
+        addToIndex(openOffset, openBlock.getStartMs(), openBlock.getEndMs());
+        openOffset = position;
+        openBlock.reset();
+
+        journalBuffer.clear();
+        journal.truncate(0);
+        journalSize = 0;
+    }
+
+    public int getBlockCount() {
+        return openBlock.getCount() > 0 ? closedBlocks + 1 : closedBlocks;
+    }
+
+    public long getBlockStartMs(int block) {
+        return block < closedBlocks ? starts[block] : openBlock.getStartMs();
+    }
+
+    public long getBlockEndMs(int block) {
+        return block < closedBlocks ? ends[block] : openBlock.getEndMs();
+    }
+
+    /** Time of the first sample, or -1 when empty. */
+    public long getFirstTimeMs() {
+        return getBlockCount() > 0 ? getBlockStartMs(0) : -1;
+    }
+
+    /** Time of the last sample, or -1 when empty. */
+    public long getLastTimeMs() {
+        int blocks = getBlockCount();
+        return blocks > 0 ? getBlockEndMs(blocks - 1) : -1;
+    }
+
+    /** Size of the file and its journal, counting samples not yet flushed. */
+    public long getSizeBytes() throws IOException {
+        return channel.size() + journalSize + journalBuffer.position();
+    }
+
+    /** Index of the first block that ends at or after {@code timeMs}. */
+    public int findBlock(long timeMs) {
+        int low = 0;
+        int high = getBlockCount();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getBlockEndMs(mid) < timeMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Loads the header of {@code block}; read it with the {@link SampleBlock}
+     * getters on the returned buffer.
+     */
+    public ByteBuffer readHeader(int block) throws IOException {
+        if (block >= closedBlocks) {
+            read(block, blockBuffer);
+            return blockBuffer;
+        }
+        if (readHeader(offsets[block]) < 0) {
+            throw new IOException("Short read in block " + block);
+        }
+        return headerBuffer;
+    }
+
+    private int readHeader(long position) throws IOException {
+        headerBuffer.clear();
+        while (headerBuffer.hasRemaining()) {
+            if (channel.read(headerBuffer, position + headerBuffer.position()) <= 0) {
+                return -1;
+            }
+        }
+        return SampleBlock.HEADER_SIZE;
+    }
+
+    /**
+     * Decodes the time stream and the columns in {@code columnMask} of {@code block}.
+     * The returned decoder is reused by the next call.
+     */
+    public SampleBlock.Decoder decode(int block, int columnMask) throws IOException {
+        read(block, blockBuffer);
+        decoder.decode(blockBuffer, columnMask);
+        return decoder;
+    }
+
+    /**
+     * Copies the encoded bytes of {@code block} to the start of {@code out},
+     * which needs {@link SampleBlock#MAX_SIZE} bytes, and flips it.
+     */
+    public void read(int block, ByteBuffer out) throws IOException {
+        out.clear();
+        if (block >= closedBlocks) {
+            openBlock.writeTo(out);
+            out.flip();
+            return;
+        }
+        long position = offsets[block];
+        long end = block + 1 < closedBlocks ? offsets[block + 1] : openOffset;
+        out.limit((int) (end - position));
+        while (out.hasRemaining()) {
+            if (channel.read(out, position + out.position()) <= 0) {
+                throw new IOException("Short read in block " + block);
+            }
+        }
+        out.flip();
+    }
+
+    /**
+     * Aggregates the known values of {@code column} over samples in
+     * [{@code startMs}, {@code endMs}). Blocks entirely inside the range are answered from their headers; only
+     * the blocks at the edges of the range are decoded.
+     */
+    public void aggregate(long startMs, long endMs, int column, Aggregate out) throws IOException {
+        out.clear();
+        int blocks = getBlockCount();
+        for (int block = findBlock(startMs); block < blocks && getBlockStartMs(block) < endMs; block++) {
+            if (getBlockStartMs(block) >= startMs && getBlockEndMs(block) < endMs) {
+                ByteBuffer header = readHeader(block);
+                out.count += SampleBlock.getKnownCount(header, column);
+                out.min = Math.min(out.min, SampleBlock.getMin(header, column));
+                out.max = Math.max(out.max, SampleBlock.getMax(header, column));
+                out.sum += SampleBlock.getSum(header, column);
+                out.blocksSkipped++;
+                continue;
+            }
+
+            SampleBlock.Decoder samples = decode(block, 1 << column);
+            float[] values = samples.values[column];
+            for (int n = 0; n < samples.count; n++) {
+                long time = samples.times[n];
+                float value = values[n];
+                if (time >= startMs && time < endMs && SampleBlock.isKnown(value)) {
+                    out.count++;
+                    if (value < out.min) {
+                        out.min = value;
+                    }
+                    if (value > out.max) {
+                        out.max = value;
+                    }
+                    out.sum += value;
+                }
+            }
+            out.blocksDecoded++;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+            journal.close();
+        }
+    }
+}
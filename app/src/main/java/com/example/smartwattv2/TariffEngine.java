@@ -0,0 +1,314 @@
+package com.example.smartwattv2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Accumulates the cost of the current billing cycle from per-sample energy deltas.
+ *
+ * Each sample costs O(1): the day's slot rates are cached and only refreshed
+ * when a sample crosses midnight. Energy is also kept per 15-minute slot of the
+ * cycle, so changing the tariff recomputes the cycle cost from at most
+ * 31 * 96 buckets instead of replaying every sample.
+ */
+public class TariffEngine {
+
+    private static final long SLOT_MS = TariffSchedule.SLOT_MINUTES * 60 * 1000L;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final int MAX_CYCLE_DAYS = 31;
+    private static final int STATE_VERSION = 1;
+
+    private TariffSchedule schedule;
+
+    // Current billing cycle
+    private long cycleStartMs = Long.MAX_VALUE;
+    private long cycleEndMs = Long.MIN_VALUE;
+    private double cycleEnergyKwh;
+    private double cycleCost;
+    private final double[] slotEnergy = new double[MAX_CYCLE_DAYS * TariffSchedule.SLOTS_PER_DAY];
+    private int usedSlots;
+    private long lastSampleMs = Long.MIN_VALUE;
+
+    // Current day within the cycle
+    private long dayStartMs = Long.MAX_VALUE;
+    private long dayEndMs = Long.MIN_VALUE;
+    private int dayOfCycle;
+    private double[] dayRates;
+
+    private final Calendar calendar;
+    private final TimeZone zone;
+
+    public TariffEngine(TariffSchedule schedule) {
+        this(schedule, TimeZone.getDefault());
+    }
+
+    /** @param zone time zone the tariff periods and billing days are defined in */
+    public TariffEngine(TariffSchedule schedule, TimeZone zone) {
+        this.schedule = schedule;
+        this.calendar = Calendar.getInstance(zone);
+        this.zone = zone;
+    }
+
+    /**
+     * Adds the energy consumed up to {@code timestampMs} and returns its cost.
+     */
+    public double addEnergy(long timestampMs, double deltaKwh) {
+        if (deltaKwh <= 0) {
+            return 0;
+        }
+        if (cycleStartMs != Long.MAX_VALUE && timestampMs < cycleStartMs) {
+            // Clock stepped back across the cycle boundary; charge to the current cycle
+            timestampMs = cycleStartMs;
+        }
+        if (timestampMs >= cycleEndMs) {
+            startCycle(timestampMs);
+        }
+        if (timestampMs >= dayEndMs || timestampMs < dayStartMs) {
+            enterDay(timestampMs);
+        }
+
+        // Slot of the wall-clock time, so DST days keep periods at their local times
+        long localMs = timestampMs + zone.getOffset(timestampMs);
+        int slot = (int) (Math.floorMod(localMs, DAY_MS) / SLOT_MS);
+        double cost = schedule.cost(dayRates[slot], cycleEnergyKwh, deltaKwh);
+
+        int bucket = dayOfCycle * TariffSchedule.SLOTS_PER_DAY + slot;
+        slotEnergy[bucket] += deltaKwh;
+        usedSlots = Math.max(usedSlots, bucket + 1);
+        cycleEnergyKwh += deltaKwh;
+        cycleCost += cost;
+        lastSampleMs = timestampMs;
+        return cost;
+    }
+
+    /**
+     * Adds energy used evenly from {@code startMs} to {@code endMs}, as across a
+     * gap in the samples, so that every slot in between is priced for its share.
+     * Returns its cost.
+     */
+    public double addEnergy(long startMs, long endMs, double deltaKwh) {
+        if (deltaKwh <= 0 || endMs <= startMs) {
+            return addEnergy(endMs, deltaKwh);
+        }
+        double kwhPerMs = deltaKwh / (endMs - startMs);
+        double remainingKwh = deltaKwh;
+        double cost = 0;
+        long fromMs = startMs;
+        while (true) {
+            long localMs = fromMs + zone.getOffset(fromMs);
+            long toMs = fromMs + SLOT_MS - Math.floorMod(localMs, SLOT_MS);
+            if (toMs >= endMs) {
+                return cost + addEnergy(fromMs, remainingKwh);
+            }
+            double kwh = (toMs - fromMs) * kwhPerMs;
+            cost += addEnergy(fromMs, kwh);
+            remainingKwh -= kwh;
+            fromMs = toMs;
+        }
+    }
+
+    /**
+     * Switches to a new tariff and re-prices the energy already used this cycle.
+     *
+     * If the billing day changes, the energy recorded so far is moved into the
+     * cycle that the new billing day gives for the latest sample. Energy from
+     * before the new cycle start is dropped as already billed. Energy from
+     * before the old cycle start is no longer kept, so it is missing from the
+     * new cycle.
+     */
+    public void setSchedule(TariffSchedule newSchedule) {
+        boolean billingDayChanged = newSchedule.getBillingDay() != schedule.getBillingDay();
+        schedule = newSchedule;
+        dayStartMs = Long.MAX_VALUE;
+        dayEndMs = Long.MIN_VALUE;
+        if (cycleStartMs == Long.MAX_VALUE) {
+            return;
+        }
+        if (billingDayChanged) {
+            moveToCycle(cycleStartFor(latestSampleMs()));
+        }
+        reprice();
+    }
+
+    /** Time of the latest sample, or the start of its slot after {@link #readState}. */
+    private long latestSampleMs() {
+        if (lastSampleMs >= cycleStartMs) {
+            return lastSampleMs;
+        }
+        int last = Math.max(0, usedSlots - 1);
+        calendar.setTimeInMillis(cycleStartMs);
+        calendar.add(Calendar.DAY_OF_MONTH, last / TariffSchedule.SLOTS_PER_DAY);
+        calendar.add(Calendar.MINUTE, last % TariffSchedule.SLOTS_PER_DAY * TariffSchedule.SLOT_MINUTES);
+        return calendar.getTimeInMillis();
+    }
+
+    private void moveToCycle(long newStartMs) {
+        long newEndMs = cycleEndFor(newStartMs);
+        double[] old = Arrays.copyOf(slotEnergy, usedSlots);
+        int oldDays = (usedSlots + TariffSchedule.SLOTS_PER_DAY - 1) / TariffSchedule.SLOTS_PER_DAY;
+        long oldStartMs = cycleStartMs;
+        Arrays.fill(slotEnergy, 0, usedSlots, 0);
+        usedSlots = 0;
+
+        calendar.setTimeInMillis(oldStartMs);
+        for (int day = 0; day < oldDays; day++) {
+            long dayMs = calendar.getTimeInMillis();
+            if (dayMs >= newStartMs && dayMs < newEndMs) {
+                int newDay = (int) Math.round((dayMs - newStartMs) / (double) DAY_MS);
+                int from = day * TariffSchedule.SLOTS_PER_DAY;
+                int to = newDay * TariffSchedule.SLOTS_PER_DAY;
+                int slots = Math.min(TariffSchedule.SLOTS_PER_DAY, old.length - from);
+                System.arraycopy(old, from, slotEnergy, to, slots);
+                usedSlots = Math.max(usedSlots, to + slots);
+            }
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        cycleStartMs = newStartMs;
+        cycleEndMs = newEndMs;
+    }
+
+    /** Recomputes the cycle energy and cost from the slot buckets. */
+    private void reprice() {
+        double energy = 0;
+        double cost = 0;
+        calendar.setTimeInMillis(cycleStartMs);
+        for (int day = 0; day * TariffSchedule.SLOTS_PER_DAY < usedSlots; day++) {
+            double[] rates = schedule.getDayRates(dayType(calendar));
+            int base = day * TariffSchedule.SLOTS_PER_DAY;
+            for (int slot = 0; slot < TariffSchedule.SLOTS_PER_DAY; slot++) {
+                double kwh = slotEnergy[base + slot];
+                if (kwh > 0) {
+                    cost += schedule.cost(rates[slot], energy, kwh);
+                    energy += kwh;
+                }
+            }
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        cycleEnergyKwh = energy;
+        cycleCost = cost;
+    }
+
+    private void startCycle(long timestampMs) {
+        long start = cycleStartFor(timestampMs);
+        if (start != cycleStartMs) {
+            resetCycle();
+        }
+        cycleStartMs = start;
+        cycleEndMs = cycleEndFor(start);
+        dayStartMs = Long.MAX_VALUE;
+        dayEndMs = Long.MIN_VALUE;
+    }
+
+    /** Start of the billing cycle containing {@code timestampMs}. */
+    private long cycleStartFor(long timestampMs) {
+        int billingDay = schedule.getBillingDay();
+        calendar.setTimeInMillis(timestampMs);
+        setStartOfDay(calendar);
+        if (calendar.get(Calendar.DAY_OF_MONTH) < Math.min(billingDay, calendar.getActualMaximum(Calendar.DAY_OF_MONTH))) {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+            calendar.add(Calendar.MONTH, -1);
+        }
+        calendar.set(Calendar.DAY_OF_MONTH, Math.min(billingDay, calendar.getActualMaximum(Calendar.DAY_OF_MONTH)));
+        return calendar.getTimeInMillis();
+    }
+
+    private long cycleEndFor(long cycleStartMs) {
+        calendar.setTimeInMillis(cycleStartMs);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.add(Calendar.MONTH, 1);
+        calendar.set(Calendar.DAY_OF_MONTH, Math.min(schedule.getBillingDay(), calendar.getActualMaximum(Calendar.DAY_OF_MONTH)));
+        return calendar.getTimeInMillis();
+    }
+
+    private void enterDay(long timestampMs) {
+        calendar.setTimeInMillis(timestampMs);
+        setStartOfDay(calendar);
+        dayStartMs = calendar.getTimeInMillis();
+        dayRates = schedule.getDayRates(dayType(calendar));
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        dayEndMs = calendar.getTimeInMillis();
+
+        // Whole days since the cycle started, rounded to absorb DST shifts
+        long days = Math.round((dayStartMs - cycleStartMs) / (24.0 * 60 * 60 * 1000));
+        dayOfCycle = (int) Math.max(0, Math.min(days, MAX_CYCLE_DAYS - 1));
+    }
+
+    private int dayType(Calendar day) {
+        int key = TariffSchedule.dateKey(day.get(Calendar.YEAR),
+                day.get(Calendar.MONTH) + 1, day.get(Calendar.DAY_OF_MONTH));
+        if (schedule.isHoliday(key)) {
+            return TariffSchedule.HOLIDAY;
+        }
+        return day.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY;
+    }
+
+    private static void setStartOfDay(Calendar c) {
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+    }
+
+    private void resetCycle() {
+        Arrays.fill(slotEnergy, 0, usedSlots, 0);
+        usedSlots = 0;
+        cycleEnergyKwh = 0;
+        cycleCost = 0;
+        cycleStartMs = Long.MAX_VALUE;
+        cycleEndMs = Long.MIN_VALUE;
+    }
+
+    public double getCycleCost() {
+        return cycleCost;
+    }
+
+    public double getCycleEnergyKwh() {
+        return cycleEnergyKwh;
+    }
+
+    public TariffSchedule getSchedule() {
+        return schedule;
+    }
+
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(STATE_VERSION);
+        out.writeLong(cycleStartMs);
+        out.writeLong(cycleEndMs);
+        out.writeInt(usedSlots);
+        for (int i = 0; i < usedSlots; i++) {
+            out.writeDouble(slotEnergy[i]);
+        }
+    }
+
+    /**
+     * Restores a saved cycle. Costs are recomputed with the current schedule.
+     */
+    public void readState(DataInputStream in) throws IOException {
+        if (in.readInt() != STATE_VERSION) {
+            throw new IOException("Unsupported tariff state version");
+        }
+        long start = in.readLong();
+        long end = in.readLong();
+        int slots = in.readInt();
+        if (slots < 0 || slots > slotEnergy.length) {
+            throw new IOException("Corrupt tariff state");
+        }
+        // Read it all before touching the cycle, so a truncated state leaves it as it was
+        double[] energy = new double[slots];
+        for (int i = 0; i < slots; i++) {
+            energy[i] = in.readDouble();
+        }
+        resetCycle();
+        System.arraycopy(energy, 0, slotEnergy, 0, slots);
+        cycleStartMs = start;
+        cycleEndMs = end;
+        usedSlots = slots;
+        dayStartMs = Long.MAX_VALUE;
+        dayEndMs = Long.MIN_VALUE;
+        reprice();
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.smartwattv2;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Time-of-use and tiered rate schedule.
+ *
+ * Rates are resolved into a fixed table of 15-minute slots for each day type
+ * (Sunday..Saturday plus holidays), so looking up the rate of a sample is a
+ * single array access. Tiers add a surcharge per kWh once the energy used in
+ * the current billing cycle passes their threshold.
+ *
+ * The schedule is stored as text, one rule per line (or separated by ';'):
+ *
+ *   base=9.50
+ *   rate=mon-fri 17:00-21:00 14.20
+ *   rate=sat,sun 00:00-24:00 8.00
+ *   rate=hol 00:00-24:00 8.00
+ *   tier=200:1.25
+ *   holiday=2026-12-25
+ *   billing=15
+ *   currency=PHP
+ *
+ * Later rules override earlier ones for the slots they cover.
+ */
+public class TariffSchedule {
+
+    public static final int SLOT_MINUTES = 15;
+    public static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+    public static final int DAY_TYPES = 8;
+    public static final int HOLIDAY = 7; // Day types 0..6 follow Calendar.SUNDAY..SATURDAY
+
+    private static final String[] DAY_NAMES = {"sun", "mon", "tue", "wed", "thu", "fri", "sat"};
+
+    public static final String DEFAULT_SPEC = "base=10.00";
+
+    private final double[][] rates = new double[DAY_TYPES][SLOTS_PER_DAY];
+    private double[] tierThresholds = new double[0];
+    private double[] tierSurcharges = new double[0];
+    private final Set<Integer> holidays = new HashSet<>();
+    private int billingDay = 1;
+    private String currency = "";
+    private String spec = "";
+
+    public static TariffSchedule parse(String spec) {
+        TariffSchedule schedule = new TariffSchedule();
+        schedule.spec = spec.trim();
+
+        for (String rawLine : spec.split("[;\\n]")) {
+            String line = rawLine.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            int eq = line.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value: '" + line + "'");
+            }
+            String key = line.substring(0, eq).trim().toLowerCase(Locale.US);
+            String value = line.substring(eq + 1).trim();
+
+            try {
+                switch (key) {
+                    case "base":
+                        schedule.fillRate(0xFF, 0, SLOTS_PER_DAY, parseRate(value));
+                        break;
+                    case "rate":
+                        schedule.parseRateRule(value);
+                        break;
+                    case "tier":
+                        schedule.parseTier(value);
+                        break;
+                    case "holiday":
+                        schedule.holidays.add(parseDate(value));
+                        break;
+                    case "billing":
+                        int day = Integer.parseInt(value);
+                        if (day < 1 || day > 31) {
+                            throw new IllegalArgumentException("Billing day must be 1-31");
+                        }
+                        schedule.billingDay = day;
+                        break;
+                    case "currency":
+                        schedule.currency = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown key '" + key + "'");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number in '" + line + "'");
+            }
+        }
+        return schedule;
+    }
+
+    private void parseRateRule(String value) {
+        String[] parts = value.split("\\s+");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected '<days> <HH:MM>-<HH:MM> <price>': '" + value + "'");
+        }
+        int dayMask = parseDays(parts[0]);
+
+        String[] range = parts[1].split("-");
+        if (range.length != 2) {
+            throw new IllegalArgumentException("Invalid time range '" + parts[1] + "'");
+        }
+        int startSlot = parseSlot(range[0]);
+        int endSlot = parseSlot(range[1]);
+        double rate = parseRate(parts[2]);
+
+        if (endSlot > startSlot) {
+            fillRate(dayMask, startSlot, endSlot, rate);
+        } else {
+            // Overnight period, e.g. 22:00-06:00
+            fillRate(dayMask, startSlot, SLOTS_PER_DAY, rate);
+            fillRate(dayMask, 0, endSlot, rate);
+        }
+    }
+
+    private void parseTier(String value) {
+        String[] parts = value.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected tier=<kWh>:<surcharge>");
+        }
+        double threshold = Double.parseDouble(parts[0].trim());
+        double surcharge = Double.parseDouble(parts[1].trim());
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Tier threshold must not be negative");
+        }
+
+        // Keep tiers sorted by threshold
+        int n = tierThresholds.length;
+        double[] thresholds = Arrays.copyOf(tierThresholds, n + 1);
+        double[] surcharges = Arrays.copyOf(tierSurcharges, n + 1);
+        int i = n;
+        while (i > 0 && thresholds[i - 1] > threshold) {
+            thresholds[i] = thresholds[i - 1];
+            surcharges[i] = surcharges[i - 1];
+            i--;
+        }
+        thresholds[i] = threshold;
+        surcharges[i] = surcharge;
+        tierThresholds = thresholds;
+        tierSurcharges = surcharges;
+    }
+
+    private static int parseDays(String value) {
+        int mask = 0;
+        for (String item : value.toLowerCase(Locale.US).split(",")) {
+            if (item.equals("all")) {
+                mask |= 0xFF;
+            } else if (item.equals("hol")) {
+                mask |= 1 << HOLIDAY;
+            } else if (item.contains("-")) {
+                String[] range = item.split("-");
+                int from = dayIndex(range[0]);
+                int to = dayIndex(range[1]);
+                for (int d = from; ; d = (d + 1) % 7) {
+                    mask |= 1 << d;
+                    if (d == to) break;
+                }
+            } else {
+                mask |= 1 << dayIndex(item);
+            }
+        }
+        return mask;
+    }
+
+    private static int dayIndex(String name) {
+        for (int i = 0; i < DAY_NAMES.length; i++) {
+            if (DAY_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown day '" + name + "'");
+    }
+
+    private static int parseSlot(String time) {
+        String[] hm = time.split(":");
+        if (hm.length != 2) {
+            throw new IllegalArgumentException("Invalid time '" + time + "'");
+        }
+        int minutes = Integer.parseInt(hm[0]) * 60 + Integer.parseInt(hm[1]);
+        if (minutes < 0 || minutes > 24 * 60 || minutes % SLOT_MINUTES != 0) {
+            throw new IllegalArgumentException("Times must be on a " + SLOT_MINUTES + "-minute boundary: '" + time + "'");
+        }
+        return minutes / SLOT_MINUTES;
+    }
+
+    private static double parseRate(String value) {
+        double rate = Double.parseDouble(value);
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate must not be negative");
+        }
+        return rate;
+    }
+
+    private static int parseDate(String value) {
+        String[] ymd = value.split("-");
+        if (ymd.length != 3) {
+            throw new IllegalArgumentException("Expected holiday=YYYY-MM-DD");
+        }
+        return dateKey(Integer.parseInt(ymd[0]), Integer.parseInt(ymd[1]), Integer.parseInt(ymd[2]));
+    }
+
+    private void fillRate(int dayMask, int fromSlot, int toSlot, double rate) {
+        for (int d = 0; d < DAY_TYPES; d++) {
+            if ((dayMask & (1 << d)) != 0) {
+                Arrays.fill(rates[d], fromSlot, toSlot, rate);
+            }
+        }
+    }
+
+    /** @param month 1-based month */
+    public static int dateKey(int year, int month, int day) {
+        return year * 10000 + month * 100 + day;
+    }
+
+    public boolean isHoliday(int dateKey) {
+        return holidays.contains(dateKey);
+    }
+
+    /** Per-slot rates for a day type; the returned array must not be modified. */
+    public double[] getDayRates(int dayType) {
+        return rates[dayType];
+    }
+
+    /**
+     * Cost of {@code kwh} consumed at {@code rate}, starting when {@code cycleKwh}
+     * has already been used this billing cycle. Deltas crossing a tier threshold
+     * are split so each part is charged at its own tier.
+     */
+    public double cost(double rate, double cycleKwh, double kwh) {
+        double cost = kwh * rate;
+        for (int i = 0; i < tierThresholds.length; i++) {
+            double above = cycleKwh + kwh - Math.max(cycleKwh, tierThresholds[i]);
+            if (above > 0) {
+                cost += Math.min(above, kwh) * tierSurcharges[i];
+            }
+        }
+        return cost;
+    }
+
+    public int getBillingDay() {
+        return billingDay;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public String formatCost(double cost) {
+        String amount = String.format(Locale.US, "%.2f", cost);
+        return currency.isEmpty() ? amount : currency + " " + amount;
+    }
+
+    public String getSpec() {
+        return spec;
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.smartwattv2;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sequential reader for trace files written by {@link TraceRecorder}.
+ */
+public class TraceReader implements Closeable {
+
+    private final DataInputStream in;
+    private final TimeZone timeZone;
+    private final long startWallMs;
+    private final long startMonoMs;
+
+    // Current record, valid after next() returned true
+    public long wallMs;
+    public long monoMs;
+    public int statusCode;
+    public String response;
+
+    private byte[] buffer = new byte[1024];
+
+    public TraceReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    public TraceReader(InputStream input) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input)));
+        try {
+            if (in.readInt() != TraceRecorder.MAGIC) {
+                throw new IOException("Not a trace file");
+            }
+            int version = in.readUnsignedByte();
+            if (version != TraceRecorder.VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            timeZone = TimeZone.getTimeZone(in.readUTF());
+            startWallMs = in.readLong();
+            startMonoMs = in.readLong();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        wallMs = startWallMs;
+        monoMs = startMonoMs;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return false at the end of the trace, including a trace cut short mid-record
+     */
+    public boolean next() throws IOException {
+        try {
+            long wallDelta = readVarLong();
+            if (wallDelta < 0) {
+                return false;
+            }
+            long nextWall = wallMs + unzigzag(wallDelta);
+            long nextMono = monoMs + unzigzag(readRequiredVarLong());
+            int code = (int) readRequiredVarLong();
+            int length = (int) readRequiredVarLong();
+            if (length < 0 || length > 1 << 20) {
+                throw new IOException("Corrupt trace record length " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+
+            wallMs = nextWall;
+            monoMs = nextMono;
+            statusCode = code;
+            response = new String(buffer, 0, length, StandardCharsets.UTF_8);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    public TimeZone getTimeZone() {
+        return timeZone;
+    }
+
+    public long getStartWallMs() {
+        return startWallMs;
+    }
+
+    public long getStartMonoMs() {
+        return startMonoMs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /** @return the value, or -1 at a clean end of stream */
+    private long readVarLong() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return -1;
+        }
+        long value = b & 0x7F;
+        int shift = 7;
+        while ((b & 0x80) != 0) {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (shift > 63) {
+                throw new IOException("Corrupt trace varint");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    private long readRequiredVarLong() throws IOException {
+        long value = readVarLong();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
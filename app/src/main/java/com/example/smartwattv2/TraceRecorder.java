@@ -0,0 +1,80 @@
+package com.example.smartwattv2;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records raw meter responses with their arrival times into a compact trace file.
+ *
+ * The file is gzip-compressed. After a header (magic, version, time zone, start
+ * times) each record holds the zigzag varint deltas of the wall-clock and
+ * monotonic arrival times, the HTTP status, and the length-prefixed UTF-8
+ * response. The time zone is stored so replays price tariff periods the same
+ * way as the original run. Read traces back with {@link TraceReader}.
+ */
+public class TraceRecorder implements Closeable {
+
+    static final int MAGIC = 0x53575452; // "SWTR"
+    static final int VERSION = 1;
+
+    private static final int FLUSH_EVERY_RECORDS = 32;
+
+    private final DataOutputStream out;
+    private long lastWallMs;
+    private long lastMonoMs;
+    private int unflushedRecords;
+
+    public TraceRecorder(File file, long startWallMs, long startMonoMs, TimeZone zone) throws IOException {
+        // Sync-flush lets a trace cut short by a crash still be read up to the last flush
+        out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file), 8192, true)));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(zone.getID());
+        out.writeLong(startWallMs);
+        out.writeLong(startMonoMs);
+        lastWallMs = startWallMs;
+        lastMonoMs = startMonoMs;
+    }
+
+    public synchronized void record(long wallMs, long monoMs, int statusCode, String response) throws IOException {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, zigzag(wallMs - lastWallMs));
+        writeVarLong(out, zigzag(monoMs - lastMonoMs));
+        writeVarLong(out, statusCode);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+        lastWallMs = wallMs;
+        lastMonoMs = monoMs;
+
+        if (++unflushedRecords >= FLUSH_EVERY_RECORDS) {
+            out.flush();
+            unflushedRecords = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
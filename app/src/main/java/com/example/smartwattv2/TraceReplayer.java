@@ -0,0 +1,75 @@
+package com.example.smartwattv2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Replays a recorded trace through a {@link MeterPipeline} on a virtual clock.
+ *
+ * The pipeline only ever sees the recorded arrival times, so results do not
+ * depend on how fast the replay runs. {@code speed} only paces the wall time
+ * of the replay: 1 is real time, 1000 is 1000x, and 0 runs as fast as possible.
+ */
+public class TraceReplayer {
+
+    public interface PipelineFactory {
+        /**
+         * @param zone time zone the trace was recorded in
+         */
+        MeterPipeline create(MeterPipeline.Clock clock, TimeZone zone);
+    }
+
+    public static class Result {
+        public int records;
+        public int readings;
+        public int parseErrors;
+        public int serverErrors;
+        public long traceDurationMs;
+        public long replayNanos;
+    }
+
+    private final File traceFile;
+
+    public TraceReplayer(File traceFile) {
+        this.traceFile = traceFile;
+    }
+
+    public Result replay(PipelineFactory factory, double speed) throws IOException, InterruptedException {
+        Result result = new Result();
+        MeterPipeline.ArrivalClock clock = new MeterPipeline.ArrivalClock();
+
+        try (TraceReader reader = new TraceReader(traceFile)) {
+            clock.set(reader.getStartWallMs(), reader.getStartMonoMs());
+            MeterPipeline pipeline = factory.create(clock, reader.getTimeZone());
+
+            long startNanos = System.nanoTime();
+            while (reader.next()) {
+                clock.set(reader.wallMs, reader.monoMs);
+                result.records++;
+                result.traceDurationMs = reader.monoMs - reader.getStartMonoMs();
+
+                if (speed > 0) {
+                    long dueNanos = startNanos + (long) (result.traceDurationMs * 1_000_000L / speed);
+                    long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+                    }
+                }
+
+                if (reader.statusCode < 200 || reader.statusCode >= 300) {
+                    result.serverErrors++;
+                    continue;
+                }
+                try {
+                    pipeline.ingest(reader.response);
+                    result.readings++;
+                } catch (IllegalArgumentException e) {
+                    result.parseErrors++;
+                }
+            }
+            result.replayNanos = System.nanoTime() - startNanos;
+        }
+        return result;
+    }
+}
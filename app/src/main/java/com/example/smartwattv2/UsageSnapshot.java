@@ -0,0 +1,178 @@
+package com.example.smartwattv2;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Latest reading in a small fixed-layout, memory-mapped file.
+ *
+ * The sampling pipeline writes every reading here; the home-screen widget and
+ * the quick-settings tile read it back with a single mapped read, without a
+ * network request or any parsing. Consistency uses a seqlock: the writer makes
+ * the sequence odd while it updates the fields, and readers retry when the
+ * sequence was odd or changed during their read. Plain mapped accesses are not
+ * ordered, so readers in this process also take the writer's lock, and every
+ * write stores a CRC of the payload that readers check; a reader that sees a
+ * half-written payload through another mapping then retries as well.
+ *
+ * Layout (little endian):
+ *   0  int    magic
+ *   4  int    sequence
+ *   8  long   timestamp (wall clock ms)
+ *   16 float  voltage
+ *   20 float  current
+ *   24 float  power (kW)
+ *   28 float  energy (kWh)
+ *   32 float  consumption limit (kWh)
+ *   36 float  cycle cost
+ *   40 float  cost limit
+ *   44 int    flags
+ *   48 int    CRC32 of bytes 8 to 47
+ */
+public class UsageSnapshot {
+
+    public static final String FILE_NAME = "usage_snapshot.bin";
+
+    public static final int FLAG_LIMIT_EXCEEDED = 1;
+    public static final int FLAG_COST_EXCEEDED = 1 << 1;
+
+    private static final int MAGIC = 0x53575332; // "SWS2"
+    private static final int SIZE = 64;
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int OFFSET_TIMESTAMP = 8;
+    private static final int OFFSET_VOLTAGE = 16;
+    private static final int OFFSET_CURRENT = 20;
+    private static final int OFFSET_POWER = 24;
+    private static final int OFFSET_ENERGY = 28;
+    private static final int OFFSET_LIMIT = 32;
+    private static final int OFFSET_COST = 36;
+    private static final int OFFSET_COST_LIMIT = 40;
+    private static final int OFFSET_FLAGS = 44;
+    private static final int OFFSET_CRC = 48;
+
+    public static class Reading {
+        public long timestampMs;
+        public float voltage;
+        public float current;
+        public float powerKw;
+        public float energyKwh;
+        public float limitKwh;
+        public float cost;
+        public float costLimit;
+        public int flags;
+    }
+
+    private static UsageSnapshot instance;
+
+    private final MappedByteBuffer buffer;
+    // Snapshot as copied by the last read or write
+    private final byte[] copy = new byte[SIZE];
+    private final ByteBuffer copyBuffer = ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+
+    private UsageSnapshot(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /** Process-wide mapping of the snapshot file, created on first use. */
+    public static synchronized UsageSnapshot get(Context context) throws IOException {
+        if (instance == null) {
+            instance = open(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    static UsageSnapshot open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != SIZE) {
+                raf.setLength(SIZE);
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            UsageSnapshot snapshot = new UsageSnapshot(buffer);
+            if (buffer.getInt(OFFSET_MAGIC) != MAGIC) {
+                // New file or an older layout: start empty, with a valid CRC
+                buffer.putInt(OFFSET_SEQUENCE, 0);
+                snapshot.write(0, 0, 0, 0, 0, 0, 0, 0, 0);
+                buffer.putInt(OFFSET_MAGIC, MAGIC);
+            }
+            return snapshot;
+        }
+    }
+
+    public synchronized void write(long timestampMs, float voltage, float current, float powerKw,
+                                   float energyKwh, float limitKwh, float cost, float costLimit, int flags) {
+        int sequence = buffer.getInt(OFFSET_SEQUENCE);
+        buffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+
+        buffer.putLong(OFFSET_TIMESTAMP, timestampMs);
+        buffer.putFloat(OFFSET_VOLTAGE, voltage);
+        buffer.putFloat(OFFSET_CURRENT, current);
+        buffer.putFloat(OFFSET_POWER, powerKw);
+        buffer.putFloat(OFFSET_ENERGY, energyKwh);
+        buffer.putFloat(OFFSET_LIMIT, limitKwh);
+        buffer.putFloat(OFFSET_COST, cost);
+        buffer.putFloat(OFFSET_COST_LIMIT, costLimit);
+        buffer.putInt(OFFSET_FLAGS, flags);
+
+        buffer.position(0);
+        buffer.get(copy);
+        buffer.putInt(OFFSET_CRC, payloadCrc());
+
+        buffer.putInt(OFFSET_SEQUENCE, sequence + 2);
+    }
+
+    /**
+     * Reads a consistent copy of the latest reading into {@code out}.
+     *
+     * @return false if nothing has been written yet or no stable copy could be read
+     */
+    public synchronized boolean read(Reading out) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            int before = buffer.getInt(OFFSET_SEQUENCE);
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            buffer.position(0);
+            buffer.get(copy);
+            if (buffer.getInt(OFFSET_SEQUENCE) != before
+                    || copyBuffer.getInt(OFFSET_CRC) != payloadCrc()) {
+                Thread.yield();
+                continue;
+            }
+
+            out.timestampMs = copyBuffer.getLong(OFFSET_TIMESTAMP);
+            out.voltage = copyBuffer.getFloat(OFFSET_VOLTAGE);
+            out.current = copyBuffer.getFloat(OFFSET_CURRENT);
+            out.powerKw = copyBuffer.getFloat(OFFSET_POWER);
+            out.energyKwh = copyBuffer.getFloat(OFFSET_ENERGY);
+            out.limitKwh = copyBuffer.getFloat(OFFSET_LIMIT);
+            out.cost = copyBuffer.getFloat(OFFSET_COST);
+            out.costLimit = copyBuffer.getFloat(OFFSET_COST_LIMIT);
+            out.flags = copyBuffer.getInt(OFFSET_FLAGS);
+            return out.timestampMs != 0;
+        }
+        return false;
+    }
+
+    /** CRC of the payload in {@link #copy}, as a signed int. */
+    private int payloadCrc() {
+        crc.reset();
+        crc.update(copy, OFFSET_TIMESTAMP, OFFSET_CRC - OFFSET_TIMESTAMP);
+        return (int) crc.getValue();
+    }
+}
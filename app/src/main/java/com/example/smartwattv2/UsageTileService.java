@@ -0,0 +1,90 @@
+package com.example.smartwattv2;
+
+import android.annotation.SuppressLint;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Quick-settings tile showing current power from {@link UsageSnapshot}.
+ *
+ * Declared as an active tile, so the system only binds it when the pipeline
+ * calls {@link #requestRefresh} or the user opens the shade.
+ */
+@RequiresApi(api = Build.VERSION_CODES.N)
+public class UsageTileService extends TileService {
+
+    private static final String TAG = "SmartWattTile";
+
+    private final UsageSnapshot.Reading reading = new UsageSnapshot.Reading();
+
+    public static void requestRefresh(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            TileService.requestListeningState(context, new ComponentName(context, UsageTileService.class));
+        }
+    }
+
+    @Override
+    public void onStartListening() {
+        super.onStartListening();
+        Tile tile = getQsTile();
+        if (tile == null) {
+            return;
+        }
+
+        boolean hasReading;
+        try {
+            hasReading = UsageSnapshot.get(this).read(reading);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not map usage snapshot", e);
+            hasReading = false;
+        }
+
+        String subtitle;
+        if (hasReading) {
+            tile.setLabel(String.format(Locale.US, "%.2f kW", reading.powerKw));
+            boolean exceeded = (reading.flags
+                    & (UsageSnapshot.FLAG_LIMIT_EXCEEDED | UsageSnapshot.FLAG_COST_EXCEEDED)) != 0;
+            tile.setState(exceeded ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+            subtitle = String.format(Locale.US, "%.2f / %.2f kWh", reading.energyKwh, reading.limitKwh);
+        } else {
+            tile.setLabel("SmartWatt");
+            tile.setState(Tile.STATE_UNAVAILABLE);
+            subtitle = "No data";
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            tile.setSubtitle(subtitle);
+        }
+        tile.updateTile();
+    }
+
+    @SuppressLint("StartActivityAndCollapseDeprecated")
+    @Override
+    public void onClick() {
+        super.onClick();
+        Intent intent = new Intent(this, MainActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            PendingIntent pendingIntent = PendingIntent.getActivity(
+                    this,
+                    0,
+                    intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+            );
+            startActivityAndCollapse(pendingIntent);
+        } else {
+            startActivityAndCollapse(intent);
+        }
+    }
+}
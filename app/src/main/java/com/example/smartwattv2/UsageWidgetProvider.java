@@ -0,0 +1,90 @@
+package com.example.smartwattv2;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.text.format.DateFormat;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+import androidx.core.content.ContextCompat;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Home-screen widget showing the latest reading from {@link UsageSnapshot}.
+ *
+ * The sampling pipeline pushes new views directly through {@link #push}; the
+ * periodic system update only reads the mapped snapshot.
+ */
+public class UsageWidgetProvider extends AppWidgetProvider {
+
+    private static final String TAG = "SmartWattWidget";
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        UsageSnapshot.Reading reading = new UsageSnapshot.Reading();
+        try {
+            if (!UsageSnapshot.get(context).read(reading)) {
+                reading = null;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not map usage snapshot", e);
+            reading = null;
+        }
+        appWidgetManager.updateAppWidget(appWidgetIds, buildViews(context, reading));
+    }
+
+    /** Updates all placed widgets with {@code reading}; does nothing if none are placed. */
+    public static void push(Context context, UsageSnapshot.Reading reading) {
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        int[] ids = manager.getAppWidgetIds(new ComponentName(context, UsageWidgetProvider.class));
+        if (ids.length > 0) {
+            manager.updateAppWidget(ids, buildViews(context, reading));
+        }
+    }
+
+    private static RemoteViews buildViews(Context context, UsageSnapshot.Reading reading) {
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_usage);
+
+        if (reading == null) {
+            views.setTextViewText(R.id.widgetPower, "- kW");
+            views.setTextViewText(R.id.widgetDetails, "No data yet");
+            views.setTextViewText(R.id.widgetStatus, "Open SmartWatt to start monitoring");
+            views.setTextColor(R.id.widgetStatus, ContextCompat.getColor(context, R.color.text_secondary));
+        } else {
+            views.setTextViewText(R.id.widgetPower, String.format(Locale.US, "%.2f kW", reading.powerKw));
+            views.setTextViewText(R.id.widgetDetails, String.format(Locale.US,
+                    "%.1f V  •  %.2f A  •  %.2f / %.2f kWh",
+                    reading.voltage, reading.current, reading.energyKwh, reading.limitKwh));
+
+            String updated = DateFormat.getTimeFormat(context).format(reading.timestampMs);
+            if ((reading.flags & UsageSnapshot.FLAG_LIMIT_EXCEEDED) != 0) {
+                views.setTextViewText(R.id.widgetStatus, "Limit exceeded • " + updated);
+                views.setTextColor(R.id.widgetStatus, ContextCompat.getColor(context, R.color.warning_text));
+            } else if ((reading.flags & UsageSnapshot.FLAG_COST_EXCEEDED) != 0) {
+                views.setTextViewText(R.id.widgetStatus, String.format(Locale.US,
+                        "Budget exceeded (%.2f) • %s", reading.cost, updated));
+                views.setTextColor(R.id.widgetStatus, ContextCompat.getColor(context, R.color.warning_text));
+            } else {
+                views.setTextViewText(R.id.widgetStatus, "Within limit • " + updated);
+                views.setTextColor(R.id.widgetStatus, ContextCompat.getColor(context, R.color.success_green));
+            }
+        }
+
+        Intent intent = new Intent(context, MainActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        PendingIntent pendingIntent = PendingIntent.getActivity(
+                context,
+                0,
+                intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
+        views.setOnClickPendingIntent(R.id.widgetRoot, pendingIntent);
+        return views;
+    }
+}
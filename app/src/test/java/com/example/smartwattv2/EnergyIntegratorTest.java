@@ -0,0 +1,281 @@
+package com.example.smartwattv2;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Property-style tests for {@link EnergyIntegrator}: each property is checked
+ * against many randomly generated meter traces with fixed seeds.
+ */
+public class EnergyIntegratorTest {
+
+    private static final int TRIALS = 200;
+    private static final long INTERVAL_MS = 1000;
+    private static final double RESOLUTION = 0.01;
+    private static final double MAX_POWER = 25;
+
+    /** Simulated meter: true energy, plus the rounded counter it reports. */
+    private static class Meter {
+        final Random random;
+        long timeMs = 1_000_000;
+        double powerKw;
+        double trueEnergyKwh;
+        double counterOffsetKwh;
+        double modulusKwh;
+
+        Meter(long seed, double startKwh, double modulusKwh) {
+            random = new Random(seed);
+            counterOffsetKwh = startKwh;
+            this.modulusKwh = modulusKwh;
+            powerKw = random.nextDouble() * 5;
+        }
+
+        void advance(long dtMs) {
+            double next = Math.min(10, Math.max(0, powerKw + random.nextGaussian() * 0.1));
+            trueEnergyKwh += (powerKw + next) * 0.5 * dtMs / 3_600_000.0;
+            powerKw = next;
+            timeMs += dtMs;
+        }
+
+        double counter() {
+            double raw = counterOffsetKwh + trueEnergyKwh;
+            if (modulusKwh > 0) {
+                raw %= modulusKwh;
+            }
+            // Device keeps a float and prints two decimals
+            return Math.round((float) raw / RESOLUTION) * RESOLUTION;
+        }
+
+        void resetCounter() {
+            counterOffsetKwh = -trueEnergyKwh;
+        }
+    }
+
+    private static EnergyIntegrator newIntegrator(double modulus) {
+        return new EnergyIntegrator(INTERVAL_MS, RESOLUTION, modulus, MAX_POWER);
+    }
+
+    @Test
+    public void integratedEnergyMatchesPowerTimesTime() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            Meter meter = new Meter(trial, 0, 0);
+            EnergyIntegrator integrator = newIntegrator(0);
+            integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+
+            int samples = 500 + meter.random.nextInt(2000);
+            for (int i = 0; i < samples; i++) {
+                meter.advance(INTERVAL_MS - 100 + meter.random.nextInt(200));
+                integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+            }
+            assertEquals(meter.trueEnergyKwh, integrator.getIntegratedKwh(), 1e-9);
+        }
+    }
+
+    @Test
+    public void reconciledEnergyTracksCounterWithinResolution() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            Meter meter = new Meter(trial, 0, 0);
+            EnergyIntegrator integrator = newIntegrator(0);
+            double start = meter.counter();
+            integrator.update(meter.timeMs, meter.powerKw, start);
+
+            int samples = 500 + meter.random.nextInt(2000);
+            for (int i = 0; i < samples; i++) {
+                meter.advance(INTERVAL_MS);
+                integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+            }
+            assertEquals(0, integrator.getResetCount());
+            assertEquals(0, integrator.getMismatchCount());
+            assertEquals(meter.counter(), integrator.getEnergyKwh(), 1e-6);
+        }
+    }
+
+    @Test
+    public void counterResetsAreDetectedAndEnergyKeepsIncreasing() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            Meter meter = new Meter(trial, 100 + trial, 0);
+            EnergyIntegrator integrator = newIntegrator(0);
+            integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+
+            int resets = 0;
+            double previous = integrator.getEnergyKwh();
+            for (int i = 0; i < 3000; i++) {
+                meter.advance(INTERVAL_MS);
+                if (meter.random.nextInt(500) == 0 && meter.counter() > RESOLUTION) {
+                    meter.resetCounter();
+                    resets++;
+                }
+                int status = integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+                assertEquals(0, status & EnergyIntegrator.STATUS_REJECTED);
+                assertTrue(integrator.getEnergyKwh() >= previous);
+                previous = integrator.getEnergyKwh();
+            }
+            assertEquals(resets, integrator.getResetCount());
+
+            // Each reset loses at most the counter quantisation of one sample
+            double expected = 100 + trial + meter.trueEnergyKwh;
+            assertEquals(expected, integrator.getEnergyKwh(), (resets + 1) * 2 * RESOLUTION + 1e-6);
+        }
+    }
+
+    @Test
+    public void wraparoundIsNotMistakenForReset() {
+        double modulus = 1000;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            Meter meter = new Meter(trial, modulus - 0.5, modulus);
+            meter.powerKw = 10;
+            EnergyIntegrator integrator = newIntegrator(modulus);
+            double start = meter.counter();
+            integrator.update(meter.timeMs, meter.powerKw, start);
+
+            for (int i = 0; i < 600; i++) {
+                meter.advance(INTERVAL_MS);
+                int status = integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+                assertEquals(0, status & EnergyIntegrator.STATUS_RESET);
+            }
+            assertEquals(1, integrator.getWrapCount());
+            assertEquals(start + meter.trueEnergyKwh, integrator.getEnergyKwh(), 2 * RESOLUTION);
+        }
+    }
+
+    @Test
+    public void gapsUseCounterDelta() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            Meter meter = new Meter(trial, 0, 0);
+            EnergyIntegrator integrator = newIntegrator(0);
+            double start = meter.counter();
+            integrator.update(meter.timeMs, meter.powerKw, start);
+
+            int gaps = 0;
+            for (int i = 0; i < 2000; i++) {
+                if (meter.random.nextInt(200) == 0) {
+                    // App was suspended: the meter keeps counting but we see no samples
+                    for (int j = 0; j < 60 + meter.random.nextInt(600); j++) {
+                        meter.advance(INTERVAL_MS);
+                    }
+                    gaps++;
+                } else {
+                    meter.advance(INTERVAL_MS);
+                }
+                integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+            }
+            assertEquals(gaps, integrator.getGapCount());
+            assertEquals(meter.counter(), integrator.getEnergyKwh(), 1e-6);
+        }
+    }
+
+    @Test
+    public void resumedIntegratorTakesTheStopAsAGap() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            Meter meter = new Meter(trial, 50, 0);
+            EnergyIntegrator before = newIntegrator(0);
+            for (int i = 0; i < 100; i++) {
+                meter.advance(INTERVAL_MS);
+                before.update(meter.timeMs, meter.powerKw, meter.counter());
+            }
+            long stoppedMs = meter.timeMs;
+            double stoppedCounter = before.getLastCounterKwh();
+
+            // The app is closed while the meter keeps counting, and sometimes reboots
+            boolean reset = trial % 4 == 0;
+            for (int i = 0; i < 600 + meter.random.nextInt(3000); i++) {
+                meter.advance(INTERVAL_MS);
+            }
+            if (reset) {
+                meter.resetCounter();
+                meter.advance(INTERVAL_MS);
+            }
+            EnergyIntegrator after = newIntegrator(0);
+            after.resume(stoppedMs, before.getLastPowerKw(), stoppedCounter);
+            int status = after.update(meter.timeMs, meter.powerKw, meter.counter());
+
+            assertTrue((status & EnergyIntegrator.STATUS_GAP) != 0);
+            if (reset) {
+                assertTrue((status & EnergyIntegrator.STATUS_RESET) != 0);
+                assertTrue(after.getLastDeltaKwh() > 0);
+            } else {
+                assertEquals(meter.counter() - stoppedCounter, after.getLastDeltaKwh(), 1e-9);
+                assertEquals(meter.counter(), after.getEnergyKwh(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void largeCounterValuesDoNotLosePrecision() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            // At this magnitude a float counter only moves in steps of ~0.06 kWh
+            Meter meter = new Meter(trial, 1_000_000 + trial * 1000, 0);
+            EnergyIntegrator integrator = newIntegrator(0);
+            integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+
+            for (int i = 0; i < 3000; i++) {
+                meter.advance(INTERVAL_MS);
+                int status = integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+                assertEquals(0, status & (EnergyIntegrator.STATUS_RESET | EnergyIntegrator.STATUS_MISMATCH));
+            }
+            // The reconciled total telescopes the counter deltas rather than summing rounded values
+            assertEquals(meter.counter(), integrator.getEnergyKwh(), 1e-6);
+            assertEquals(meter.trueEnergyKwh, integrator.getIntegratedKwh(), 1e-9);
+        }
+    }
+
+    @Test
+    public void resetFromSmallCounterValueIsDetected() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            Meter meter = new Meter(trial, 0, 0);
+            EnergyIntegrator integrator = newIntegrator(0);
+            integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+
+            // A fresh counter reset again after a few steps of the display
+            while (meter.counter() < 2 * RESOLUTION) {
+                meter.advance(INTERVAL_MS);
+                integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+            }
+            double before = integrator.getEnergyKwh();
+            meter.advance(INTERVAL_MS);
+            meter.resetCounter();
+            int status = integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+
+            assertEquals(EnergyIntegrator.STATUS_RESET, status & EnergyIntegrator.STATUS_RESET);
+            assertEquals(1, integrator.getResetCount());
+            assertEquals(integrator.getLastDeltaKwh(), integrator.getEnergyKwh() - before, 1e-12);
+
+            // Counting resumes from the new zero
+            for (int i = 0; i < 600; i++) {
+                meter.advance(INTERVAL_MS);
+                integrator.update(meter.timeMs, meter.powerKw, meter.counter());
+            }
+            assertEquals(1, integrator.getResetCount());
+        }
+    }
+
+    @Test
+    public void garbageInputNeverDecreasesEnergy() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            Random random = new Random(trial);
+            EnergyIntegrator integrator = newIntegrator(0);
+            long time = 0;
+            double previous = 0;
+            boolean started = false;
+
+            for (int i = 0; i < 1000; i++) {
+                time += random.nextInt(4000) - 500;
+                double power = random.nextInt(20) == 0 ? Double.NaN : random.nextDouble() * 40 - 5;
+                double counter = random.nextInt(20) == 0 ? -1 : random.nextDouble() * 1e6;
+
+                int status = integrator.update(time, power, counter);
+                if (!started) {
+                    started = (status & EnergyIntegrator.STATUS_FIRST) != 0;
+                } else {
+                    assertTrue(integrator.getEnergyKwh() >= previous);
+                    assertTrue(integrator.getLastDeltaKwh() >= 0);
+                    assertTrue(integrator.getLastDeltaKwh() <= MAX_POWER * 4000 / 3_600_000.0 + 1);
+                }
+                previous = integrator.getEnergyKwh();
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.smartwattv2;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CSV and binary exports against the stored samples, cancellation and the
+ * copying of whole blocks.
+ */
+public class HistoryExporterTest {
+
+    private static final long START_MS = 1_700_000_000_000L;
+
+    private static File tempDirectory(String name) throws IOException {
+        File directory = Files.createTempDirectory(name).toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("export", ".out");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /** Samples in meter units, as {@link #fill} stores them. */
+    private static float voltage(int n) {
+        return (2290 + n % 23) / 10f;
+    }
+
+    private static float current(int n) {
+        return n % 5000 == 0 ? Float.NaN : (n % 997) / 1000f;
+    }
+
+    private static float power(int n) {
+        return (n % 3001) / 1000f;
+    }
+
+    private static float energy(int n) {
+        return (100_000 + n / 100) / 100f;
+    }
+
+    private static long time(int n) {
+        return START_MS + n * 1000L + (n % 7) * 5;
+    }
+
+    private static HistoryStore fill(String meterId, int count) throws IOException {
+        HistoryStore store = new HistoryStore(tempDirectory(meterId));
+        for (int n = 0; n < count; n++) {
+            store.append(time(n), voltage(n), current(n), power(n), energy(n));
+        }
+        store.flush();
+        return store;
+    }
+
+    private static float parse(String field) {
+        return field.isEmpty() ? Float.NaN : Float.parseFloat(field);
+    }
+
+    private static void assertSameBits(float expected, float actual) {
+        assertEquals(Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+    }
+
+    @Test
+    public void csvRowsMatchStoredSamples() throws IOException {
+        int count = 20_000;
+        List<HistoryStore> stores = Arrays.asList(fill("meterA", count), fill("meterB", count));
+        // Starts and ends inside blocks
+        int first = 3000;
+        int last = 15_000;
+        File file = tempFile();
+
+        assertTrue(new HistoryExporter().export(stores, time(first), time(last + 1), HistoryExporter.FORMAT_CSV,
+                file, null));
+
+        SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            assertEquals("meter,time_ms,time_utc,voltage_v,current_a,power_kw,energy_kwh", reader.readLine());
+            for (HistoryStore store : stores) {
+                for (int n = first; n <= last; n++) {
+                    String[] fields = reader.readLine().split(",", -1);
+                    assertEquals(store.getMeterId(), fields[0]);
+                    assertEquals(time(n), Long.parseLong(fields[1]));
+                    assertEquals(utc.format(new Date(time(n))), fields[2]);
+                    assertSameBits(voltage(n), parse(fields[3]));
+                    assertSameBits(current(n), parse(fields[4]));
+                    assertSameBits(power(n), parse(fields[5]));
+                    assertSameBits(energy(n), parse(fields[6]));
+                }
+            }
+            assertEquals(null, reader.readLine());
+        }
+    }
+
+    @Test
+    public void binaryExportDecodesToRange() throws IOException {
+        int count = 20_000;
+        List<HistoryStore> stores = Arrays.asList(fill("meterA", count), fill("meterB", count));
+        int first = 3000;
+        int last = 15_000;
+        File file = tempFile();
+
+        assertTrue(new HistoryExporter().export(stores, time(first), time(last + 1),
+                HistoryExporter.FORMAT_BINARY, file, null));
+
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(HistoryExporter.BINARY_MAGIC, in.getInt());
+        assertEquals(HistoryExporter.BINARY_VERSION, in.getInt());
+        assertEquals(time(first), in.getLong());
+        assertEquals(time(last + 1), in.getLong());
+
+        ByteBuffer block = ByteBuffer.allocate(SampleBlock.MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        SampleBlock.Decoder decoder = new SampleBlock.Decoder();
+        for (HistoryStore store : stores) {
+            byte[] meterId = new byte[in.getShort()];
+            in.get(meterId);
+            assertEquals(store.getMeterId(), new String(meterId, StandardCharsets.UTF_8));
+
+            int n = first;
+            for (int size = in.getInt(); size != 0; size = in.getInt()) {
+                block.clear();
+                block.put(in.array(), in.position(), size).flip();
+                in.position(in.position() + size);
+                decoder.decode(block, (1 << SampleBlock.COLUMNS) - 1);
+                for (int i = 0; i < decoder.count; i++, n++) {
+                    assertEquals(time(n), decoder.times[i]);
+                    assertSameBits(voltage(n), decoder.values[SampleBlock.VOLTAGE][i]);
+                    assertSameBits(current(n), decoder.values[SampleBlock.CURRENT][i]);
+                    assertSameBits(power(n), decoder.values[SampleBlock.POWER][i]);
+                    assertSameBits(energy(n), decoder.values[SampleBlock.ENERGY][i]);
+                }
+            }
+            assertEquals(last + 1, n);
+        }
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void cancelDeletesPartialFile() throws IOException {
+        List<HistoryStore> stores = Arrays.asList(fill("meterA", 50_000));
+        File file = tempFile();
+        HistoryExporter exporter = new HistoryExporter();
+        List<Float> progress = new ArrayList<>();
+
+        boolean completed = exporter.export(stores, 0, Long.MAX_VALUE, HistoryExporter.FORMAT_CSV, file,
+                fraction -> {
+                    progress.add(fraction);
+                    if (progress.size() == 3) {
+                        exporter.cancel();
+                    }
+                });
+
+        assertFalse(completed);
+        assertFalse(file.exists());
+        assertEquals(3, progress.size());
+
+        progress.clear();
+        assertTrue(new HistoryExporter().export(stores, 0, Long.MAX_VALUE, HistoryExporter.FORMAT_CSV, file, progress::add));
+        assertEquals(1f, progress.get(progress.size() - 1), 0f);
+    }
+
+    /**
+     * A week of 1 Hz samples. Blocks inside the range are copied to the binary
+     * export byte for byte, only the two at its edges are re-encoded.
+     */
+    @Test
+    public void weekOfSamplesCopiesInnerBlocks() throws IOException {
+        int total = 7 * 86_400;
+        File directory = tempDirectory("meterA");
+        try (SampleBlockFile blocks = new SampleBlockFile(new File(directory, "samples.blk"))) {
+            for (int n = 0; n < total; n++) {
+                blocks.append(time(n), voltage(n), current(n), power(n), energy(n));
+            }
+        }
+        HistoryStore store = new HistoryStore(directory);
+        List<HistoryStore> stores = Arrays.asList(store);
+        File file = tempFile();
+
+        assertTrue(new HistoryExporter().export(stores, time(1), time(total - 1),
+                HistoryExporter.FORMAT_BINARY, file, null));
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        in.position(24);
+        in.position(in.position() + 2 + in.getShort(in.position()));
+        ByteBuffer stored = ByteBuffer.allocate(SampleBlock.MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int blocks = store.getBlockCount();
+        int copied = 0;
+        for (int block = 0; block < blocks; block++) {
+            int size = in.getInt();
+            store.readBlock(block, stored);
+            byte[] exported = Arrays.copyOfRange(in.array(), in.position(), in.position() + size);
+            in.position(in.position() + size);
+            if (Arrays.equals(Arrays.copyOf(stored.array(), stored.limit()), exported)) {
+                copied++;
+            }
+        }
+        assertEquals(0, in.getInt());
+        assertFalse(in.hasRemaining());
+        assertEquals(blocks - 2, copied);
+        // So the export keeps the compression of the blocks
+        assertTrue(file.length() < 4L * total);
+
+        assertTrue(new HistoryExporter().export(stores, 0, Long.MAX_VALUE, HistoryExporter.FORMAT_CSV, file, null));
+        int rows = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            while (reader.readLine() != null) {
+                rows++;
+            }
+        }
+        assertEquals(total + 1, rows);
+        // Time, UTC time and the meter's digits: at most 66 bytes besides the id
+        int rowBytes = store.getMeterId().length() + 66;
+        assertTrue(file.length() < (long) rowBytes * (total + 1));
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.smartwattv2;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Level-of-detail choice and min/max downsampling of history queries.
+ */
+public class HistoryStoreTest {
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    // A multiple of the coarsest bucket, so bucket edges are known
+    private static final long START_MS = 65_536_000L * 26_000;
+    private static final long STEP_MS = 10_000;
+
+    private static File newDirectory() throws IOException {
+        File directory = Files.createTempDirectory("history").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static HistoryStore newStore() throws IOException {
+        return new HistoryStore(newDirectory());
+    }
+
+    private static float power(int n) {
+        return n % 360 / 100f;
+    }
+
+    /** {@code days} of samples every 10 s, skipping the second day. */
+    private static HistoryStore fill(int days) throws IOException {
+        HistoryStore store = newStore();
+        int perDay = (int) (DAY_MS / STEP_MS);
+        for (int n = 0; n < days * perDay; n++) {
+            if (n / perDay != 1) {
+                store.append(START_MS + n * STEP_MS, 230, 1, power(n), n / 1000f);
+            }
+        }
+        return store;
+    }
+
+    @Test
+    public void levelIsCoarsestThatFitsAColumn() {
+        assertEquals(-1, HistoryStore.levelFor(60_000.0 / 1080));
+        assertEquals(-1, HistoryStore.levelFor(15_999));
+        assertEquals(0, HistoryStore.levelFor(16_000));
+        assertEquals(0, HistoryStore.levelFor(DAY_MS / 1080.0));
+        assertEquals(1, HistoryStore.levelFor(7 * DAY_MS / 1080.0));
+        assertEquals(2, HistoryStore.levelFor(365 * DAY_MS / 1080.0));
+        assertEquals(3, HistoryStore.levelFor(400 * DAY_MS / 100.0));
+    }
+
+    @Test
+    public void queriesReturnAtMostTwoPointsPerColumn() throws IOException {
+        HistoryStore store = fill(30);
+        HistoryStore.Series out = new HistoryStore.Series();
+        long[] ranges = {60_000, 3_600_000, DAY_MS, 7 * DAY_MS, 30 * DAY_MS, 400 * DAY_MS};
+        int[] widths = {100, 1080};
+
+        for (long range : ranges) {
+            for (int columns : widths) {
+                long start = START_MS + 3 * DAY_MS + 12_345 - range / 2;
+                store.query(start, start + range, columns, HistoryStore.SERIES_POWER, out);
+
+                assertTrue(out.count > 0);
+                assertTrue(out.count <= 2 * columns);
+                for (int i = 0; i < out.count; i++) {
+                    assertTrue(out.times[i] >= start && out.times[i] < start + range);
+                    assertTrue(i == 0 || out.times[i] >= out.times[i - 1]);
+                }
+                if (range >= 3_600_000) {
+                    // Every range this long covers a full cycle of the pattern
+                    assertEquals(0f, out.min, 0f);
+                    assertEquals(power(359), out.max, 0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rawQueryReturnsEverySample() throws IOException {
+        HistoryStore store = fill(1);
+        HistoryStore.Series out = new HistoryStore.Series();
+        // 10 s samples in 50 columns of 2.4 s
+        store.query(START_MS, START_MS + 120_000, 50, HistoryStore.SERIES_POWER, out);
+
+        assertEquals(12, out.count);
+        for (int n = 0; n < 12; n++) {
+            assertEquals(START_MS + n * STEP_MS, out.times[n], 2400);
+            assertEquals(power(n), out.values[n], 0f);
+        }
+    }
+
+    @Test
+    public void bucketStraddlingTheStartFillsTheFirstColumn() throws IOException {
+        HistoryStore store = fill(3);
+        HistoryStore.Series out = new HistoryStore.Series();
+        // 20 s columns use the 16 s level; the range starts mid-bucket
+        long start = START_MS + 100_000 + 8_000;
+        store.query(start, start + 200 * 20_000, 200, HistoryStore.SERIES_POWER, out);
+
+        assertEquals(start, out.times[0]);
+    }
+
+    @Test
+    public void gapsHaveNoPoints() throws IOException {
+        HistoryStore store = fill(3);
+        HistoryStore.Series out = new HistoryStore.Series();
+        int columns = 300;
+        store.query(START_MS, START_MS + 3 * DAY_MS, columns, HistoryStore.SERIES_POWER, out);
+
+        double columnMs = 3.0 * DAY_MS / columns;
+        int inGap = 0;
+        for (int i = 0; i < out.count; i++) {
+            // Columns wholly inside the skipped day
+            if (out.times[i] >= START_MS + DAY_MS && out.times[i] + columnMs <= START_MS + 2 * DAY_MS) {
+                inGap++;
+            }
+        }
+        assertEquals(0, inGap);
+        assertTrue(out.count > 150);
+    }
+
+    @Test
+    public void energySeriesUsesEnergyColumn() throws IOException {
+        HistoryStore store = fill(1);
+        HistoryStore.Series out = new HistoryStore.Series();
+        store.query(START_MS, START_MS + DAY_MS, 500, HistoryStore.SERIES_ENERGY, out);
+
+        assertEquals(0f, out.min, 0f);
+        assertEquals((int) (DAY_MS / STEP_MS - 1) / 1000f, out.max, 0f);
+    }
+
+    @Test
+    public void meanCoversAllSamplesAndSkipsUnknownPower() throws IOException {
+        HistoryStore store = newStore();
+        double sum = 0;
+        int known = 0;
+        int total = (int) (3 * DAY_MS / STEP_MS);
+        for (int n = 0; n < total; n++) {
+            float power = n % 7 == 0 ? Float.NaN : power(n);
+            if (n % 7 != 0) {
+                sum += power;
+                known++;
+            }
+            store.append(START_MS + n * STEP_MS, Float.NaN, Float.NaN, power, n / 1000f);
+        }
+        HistoryStore.Series out = new HistoryStore.Series();
+
+        // Levels of detail and raw samples, both over whole buckets
+        for (int columns : new int[] {100, 10_000}) {
+            store.query(START_MS, START_MS + 3 * DAY_MS, columns, HistoryStore.SERIES_POWER, out);
+            assertEquals(sum / known, out.mean, 1e-4);
+            assertEquals(0f, out.min, 0f);
+            assertEquals(power(359), out.max, 0f);
+        }
+        store.query(START_MS, START_MS + 3 * DAY_MS, 100, HistoryStore.SERIES_ENERGY, out);
+        assertTrue(Double.isNaN(out.mean));
+    }
+}
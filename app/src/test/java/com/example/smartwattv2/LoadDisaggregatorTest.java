@@ -0,0 +1,226 @@
+package com.example.smartwattv2;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Step detection, signature clustering, on/off pairing and per-appliance
+ * energy of the load disaggregator, fed with synthetic household traces.
+ */
+public class LoadDisaggregatorTest {
+
+    private static final float VOLTAGE = 230f;
+    private static final float BASE_KW = 0.15f;
+    private static final float KETTLE_KW = 2.0f;
+    private static final float FRIDGE_KW = 0.12f;
+    private static final float FRIDGE_PF = 0.7f;
+
+    /** Sums the switched loads into meter samples at a fixed rate. */
+    private static class House {
+        final LoadDisaggregator disaggregator;
+        final Random random = new Random(1);
+        final long stepMs;
+        long time = 1_700_000_000_000L;
+        float power = BASE_KW;
+        float current = BASE_KW * 1000 / VOLTAGE;
+        float noiseKw;
+        double energyKwh; // Of the switched loads and base, without noise
+
+        House(LoadDisaggregator disaggregator, long stepMs) {
+            this.disaggregator = disaggregator;
+            this.stepMs = stepMs;
+        }
+
+        void toggle(float powerKw, float powerFactor, boolean on) {
+            float sign = on ? 1 : -1;
+            power += sign * powerKw;
+            current += sign * powerKw * 1000 / VOLTAGE / powerFactor;
+        }
+
+        void run(int samples) {
+            for (int n = 0; n < samples; n++) {
+                time += stepMs;
+                energyKwh += power * stepMs / 3_600_000.0;
+                float noise = noiseKw > 0 ? (float) random.nextGaussian() * noiseKw : 0;
+                disaggregator.process(time, VOLTAGE, current, power + noise);
+            }
+        }
+    }
+
+    private static LoadDisaggregator.Appliance find(List<LoadDisaggregator.Appliance> appliances, float powerKw) {
+        for (LoadDisaggregator.Appliance a : appliances) {
+            if (Math.abs(a.powerKw - powerKw) < 0.1f * powerKw) {
+                return a;
+            }
+        }
+        throw new AssertionError("No appliance near " + powerKw + " kW");
+    }
+
+    @Test
+    public void kettleCyclesAreClusteredAndMetered() {
+        LoadDisaggregator disaggregator = new LoadDisaggregator();
+        House house = new House(disaggregator, 1000);
+        house.noiseKw = 0.003f;
+        house.run(60);
+        for (int cycle = 0; cycle < 3; cycle++) {
+            house.toggle(KETTLE_KW, 1f, true);
+            house.run(180);
+            house.toggle(KETTLE_KW, 1f, false);
+            house.run(120);
+        }
+
+        List<LoadDisaggregator.Appliance> appliances = disaggregator.getAppliances();
+        assertEquals(1, appliances.size());
+        LoadDisaggregator.Appliance kettle = appliances.get(0);
+        assertEquals(KETTLE_KW, kettle.powerKw, 0.01f);
+        assertEquals(1f, kettle.powerFactor, 0.02f);
+        assertEquals("Water heater / kettle", kettle.label);
+        assertEquals(3, kettle.switchCount);
+        assertFalse(kettle.on);
+        // 3 x 2 kW for 3 minutes
+        assertEquals(0.3, kettle.energyKwh, 0.003);
+        // The base load, plus the kettle during the 2 s each switch-on takes to settle
+        assertEquals((BASE_KW * 960 + 3 * 2 * KETTLE_KW) / 3600.0, disaggregator.getUnexplainedEnergyKwh(), 0.001);
+    }
+
+    @Test
+    public void overlappingAppliancesArePairedByPower() {
+        LoadDisaggregator disaggregator = new LoadDisaggregator();
+        House house = new House(disaggregator, 1000);
+        house.run(30);
+        house.toggle(FRIDGE_KW, FRIDGE_PF, true);
+        house.run(60);
+        house.toggle(KETTLE_KW, 1f, true);
+        house.run(60);
+        // The fridge switches off while the kettle is still on
+        house.toggle(FRIDGE_KW, FRIDGE_PF, false);
+        house.run(180);
+        house.toggle(KETTLE_KW, 1f, false);
+        house.run(30);
+
+        List<LoadDisaggregator.Appliance> appliances = disaggregator.getAppliances();
+        assertEquals(2, appliances.size());
+        LoadDisaggregator.Appliance fridge = find(appliances, FRIDGE_KW);
+        LoadDisaggregator.Appliance kettle = find(appliances, KETTLE_KW);
+        assertFalse(fridge.on);
+        assertFalse(kettle.on);
+        assertEquals(FRIDGE_PF, fridge.powerFactor, 0.05f);
+        assertEquals("Refrigerator / fan", fridge.label);
+        assertEquals(FRIDGE_KW * 120 / 3600.0, fridge.energyKwh, 0.0002);
+        assertEquals(KETTLE_KW * 240 / 3600.0, kettle.energyKwh, 0.002);
+        // Sorted by energy
+        assertEquals(kettle.id, appliances.get(0).id);
+    }
+
+    @Test
+    public void noiseBelowTheStepThresholdIsIgnored() {
+        LoadDisaggregator disaggregator = new LoadDisaggregator();
+        House house = new House(disaggregator, 1000);
+        house.noiseKw = 0.005f;
+        house.run(3600);
+
+        assertTrue(disaggregator.getAppliances().isEmpty());
+        assertEquals(BASE_KW, disaggregator.getUnexplainedEnergyKwh(), 0.002);
+    }
+
+    @Test
+    public void fullTableKeepsRunningAppliances() {
+        LoadDisaggregator disaggregator = new LoadDisaggregator();
+        House house = new House(disaggregator, 1000);
+        house.run(10);
+        // 16 signatures far enough apart not to match each other, all left on
+        float[] loads = new float[17];
+        for (int i = 0; i < loads.length; i++) {
+            loads[i] = (float) (0.1 * Math.pow(1.4, i));
+        }
+        for (int i = 0; i < 16; i++) {
+            house.toggle(loads[i], 1f, true);
+            house.run(10);
+        }
+
+        // A 17th load has no free slot; it stays unexplained
+        house.toggle(loads[16], 1f, true);
+        house.run(10);
+        house.toggle(loads[16], 1f, false);
+        house.run(10);
+        List<LoadDisaggregator.Appliance> appliances = disaggregator.getAppliances();
+        assertEquals(16, appliances.size());
+        for (LoadDisaggregator.Appliance a : appliances) {
+            assertTrue(a.on);
+            assertEquals(1, a.switchCount);
+        }
+
+        // The running appliances still pair with their off edges
+        house.toggle(loads[5], 1f, false);
+        house.run(10);
+        appliances = disaggregator.getAppliances();
+        assertFalse(find(appliances, loads[5]).on);
+        assertTrue(find(appliances, loads[4]).on);
+        assertTrue(find(appliances, loads[6]).on);
+    }
+
+    @Test
+    public void workerProcessesSubmittedSamples() throws InterruptedException {
+        LoadDisaggregator disaggregator = new LoadDisaggregator();
+        disaggregator.start();
+        long time = 1_700_000_000_000L;
+        float base = BASE_KW * 1000 / VOLTAGE;
+        float on = (BASE_KW + KETTLE_KW) * 1000 / VOLTAGE;
+        for (int n = 0; n < 10; n++) {
+            disaggregator.submit(time += 1000, VOLTAGE, base, BASE_KW);
+        }
+        for (int n = 0; n < 60; n++) {
+            disaggregator.submit(time += 1000, VOLTAGE, on, BASE_KW + KETTLE_KW);
+        }
+        for (int n = 0; n < 10; n++) {
+            disaggregator.submit(time += 1000, VOLTAGE, base, BASE_KW);
+        }
+
+        List<LoadDisaggregator.Appliance> appliances = disaggregator.getAppliances();
+        for (int wait = 0; wait < 500 && (appliances.isEmpty() || appliances.get(0).on); wait++) {
+            Thread.sleep(10);
+            appliances = disaggregator.getAppliances();
+        }
+        disaggregator.stop();
+
+        assertEquals(0, disaggregator.getDroppedSamples());
+        assertEquals(1, appliances.size());
+        assertFalse(appliances.get(0).on);
+        assertEquals(KETTLE_KW * 60 / 3600.0, appliances.get(0).energyKwh, 0.001);
+    }
+
+    @Test
+    public void dayAtTenHertzAccountsForAllEnergy() {
+        LoadDisaggregator disaggregator = new LoadDisaggregator();
+        House house = new House(disaggregator, 100);
+        house.noiseKw = 0.003f;
+        Random random = new Random(2);
+        float[] loads = {FRIDGE_KW, 0.06f, 0.45f, 1.1f, KETTLE_KW};
+        boolean[] on = new boolean[loads.length];
+
+        // 24 hours at 10 Hz, one appliance switching every 2 minutes on average
+        for (int minute = 0; minute < 24 * 60; minute++) {
+            if (random.nextBoolean()) {
+                int i = random.nextInt(loads.length);
+                on[i] = !on[i];
+                house.toggle(loads[i], i == 0 ? FRIDGE_PF : 1f, on[i]);
+            }
+            house.run(600);
+        }
+
+        // 864,000 samples, and still one signature per load
+        List<LoadDisaggregator.Appliance> appliances = disaggregator.getAppliances();
+        assertEquals(loads.length, appliances.size());
+        double energyKwh = disaggregator.getUnexplainedEnergyKwh();
+        for (LoadDisaggregator.Appliance a : appliances) {
+            energyKwh += a.energyKwh;
+        }
+        assertEquals(house.energyKwh, energyKwh, 0.01 * house.energyKwh);
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.smartwattv2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * A day of 1 Hz samples: compressed blocks against raw 24-byte records
+ * (long time and four floats), on size, full-column scan and aggregation.
+ *
+ * Prints timings instead of asserting on them, so it is not part of the test
+ * suite; run its main method by hand. {@link SampleBlockTest} checks the
+ * ratio and the header-only aggregation.
+ */
+public class SampleBlockBenchmark {
+
+    private static final int RAW_RECORD_SIZE = 24; // long time + 4 floats
+
+    public static void main(String[] args) throws IOException {
+        int total = 86_400;
+        File rawFile = File.createTempFile("samples", ".raw");
+        rawFile.deleteOnExit();
+        File blockFile = SampleBlockTest.tempFile();
+
+        SampleBlockTest.Meter meter = new SampleBlockTest.Meter(6);
+        ByteBuffer record = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel raw = new RandomAccessFile(rawFile, "rw").getChannel();
+             SampleBlockFile blocks = new SampleBlockFile(blockFile)) {
+            for (int n = 0; n < total; n++) {
+                meter.next();
+                float energy = (float) meter.energy;
+                record.putLong(meter.time).putFloat(meter.voltage).putFloat(meter.current)
+                        .putFloat(meter.power).putFloat(energy);
+                if (record.remaining() < RAW_RECORD_SIZE) {
+                    record.flip();
+                    raw.write(record);
+                    record.clear();
+                }
+                blocks.append(meter.time, meter.voltage, meter.current, meter.power, energy);
+            }
+            record.flip();
+            raw.write(record);
+        }
+
+        long rawSize = rawFile.length();
+        long blockSize = blockFile.length();
+
+        double rawSum = 0;
+        double blockSum = 0;
+        long rawNanos = Long.MAX_VALUE;
+        long blockNanos = Long.MAX_VALUE;
+        long aggregateNanos = Long.MAX_VALUE;
+        SampleBlockFile.Aggregate aggregate = new SampleBlockFile.Aggregate();
+        try (FileChannel raw = new RandomAccessFile(rawFile, "r").getChannel();
+             SampleBlockFile blocks = new SampleBlockFile(blockFile)) {
+            // Best of several runs, so the JIT and page cache are warm for both
+            for (int run = 0; run < 10; run++) {
+                long start = System.nanoTime();
+                rawSum = 0;
+                long position = 0;
+                while (position < rawSize) {
+                    record.clear();
+                    int read = raw.read(record, position);
+                    for (int offset = 0; offset + RAW_RECORD_SIZE <= read; offset += RAW_RECORD_SIZE) {
+                        rawSum += record.getFloat(offset + 16);
+                    }
+                    position += read / RAW_RECORD_SIZE * RAW_RECORD_SIZE;
+                }
+                rawNanos = Math.min(rawNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                blockSum = 0;
+                for (int block = 0; block < blocks.getBlockCount(); block++) {
+                    SampleBlock.Decoder decoded = blocks.decode(block, 1 << SampleBlock.POWER);
+                    float[] power = decoded.values[SampleBlock.POWER];
+                    for (int n = 0; n < decoded.count; n++) {
+                        blockSum += power[n];
+                    }
+                }
+                blockNanos = Math.min(blockNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                blocks.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, SampleBlock.POWER, aggregate);
+                aggregateNanos = Math.min(aggregateNanos, System.nanoTime() - start);
+            }
+        }
+
+        System.out.printf(Locale.US, "raw %d bytes, blocks %d bytes (%.2f bytes/sample), %.1fx smaller%n",
+                rawSize, blockSize, (double) blockSize / total, (double) rawSize / blockSize);
+        System.out.printf(Locale.US, "power scan: raw %.1f M samples/s, blocks %.1f M samples/s, "
+                        + "aggregate from headers %.1f M samples/s%n",
+                total * 1e3 / rawNanos, total * 1e3 / blockNanos, total * 1e3 / aggregateNanos);
+        System.out.printf(Locale.US, "power sum: raw %.3f, blocks %.3f, aggregate %.3f%n",
+                rawSum, blockSum, aggregate.sum);
+    }
+}
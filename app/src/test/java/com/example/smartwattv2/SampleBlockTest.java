@@ -0,0 +1,352 @@
+package com.example.smartwattv2;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips, crash recovery, aggregation and size of the compressed
+ * sample blocks.
+ */
+public class SampleBlockTest {
+
+    private static final long START_MS = 1_700_000_000_000L;
+    private static final int RAW_RECORD_SIZE = 24; // long time + 4 floats
+
+    /** A synthetic 1 Hz meter: decimal readings, appliances switching, arrival jitter. */
+    static class Meter {
+        final Random random;
+        long time = START_MS;
+        double energy = 1234.56;
+        final double[] loads = new double[3];
+        float voltage, current, power;
+
+        Meter(long seed) {
+            random = new Random(seed);
+        }
+
+        void next() {
+            time += 1000 + random.nextInt(60) - 30;
+            if (random.nextInt(600) == 0) {
+                loads[random.nextInt(loads.length)] = random.nextBoolean() ? random.nextDouble() * 2 : 0;
+            }
+            double p = 0.15 + loads[0] + loads[1] + loads[2] + random.nextGaussian() * 0.003;
+            double v = 230 + 2 * Math.sin(time / 3_000_000.0) + random.nextGaussian() * 0.15;
+            energy += p / 3600;
+            // As parsed from the meter's text response
+            voltage = Float.parseFloat(String.format(Locale.US, "%.1f", v));
+            current = Float.parseFloat(String.format(Locale.US, "%.3f", p * 1000 / v));
+            power = Float.parseFloat(String.format(Locale.US, "%.3f", p));
+            energy = Double.parseDouble(String.format(Locale.US, "%.2f", energy));
+        }
+    }
+
+    static File tempFile() throws IOException {
+        File file = File.createTempFile("samples", ".blk");
+        file.deleteOnExit();
+        journal(file).deleteOnExit();
+        return file;
+    }
+
+    private static File journal(File file) {
+        return new File(file.getPath() + "-journal");
+    }
+
+    private static void assertSameBits(float expected, float actual) {
+        assertEquals(Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+    }
+
+    @Test
+    public void roundTripIsExact() {
+        Random random = new Random(1);
+        SampleBlock.Encoder encoder = new SampleBlock.Encoder();
+        SampleBlock.Decoder decoder = new SampleBlock.Decoder();
+        ByteBuffer buffer = ByteBuffer.allocate(SampleBlock.MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int round = 0; round < 50; round++) {
+            int count = 1 + random.nextInt(SampleBlock.MAX_SAMPLES);
+            long[] times = new long[count];
+            float[][] values = new float[SampleBlock.COLUMNS][count];
+            long time = random.nextLong() >> 8;
+            for (int n = 0; n < count; n++) {
+                // Steady, jittered, repeated and huge steps between timestamps
+                int kind = random.nextInt(10);
+                time += kind < 5 ? 1000 : kind < 8 ? random.nextInt(3000) : kind < 9 ? 0 : random.nextInt() & 0x7FFFFFFFL;
+                times[n] = time;
+                values[0][n] = Float.parseFloat(String.format(Locale.US, "%.1f", 230 + random.nextGaussian()));
+                values[1][n] = random.nextFloat() * 100 - 50;
+                values[2][n] = n % 50 == 0 ? Float.NaN : Float.parseFloat(String.format(Locale.US, "%.3f",
+                        random.nextGaussian()));
+                values[3][n] = round % 2 == 0 ? -0.0f : random.nextInt(3) == 0 ? Float.MAX_VALUE : n;
+            }
+
+            encoder.reset();
+            for (int n = 0; n < count; n++) {
+                encoder.add(times[n], values[0][n], values[1][n], values[2][n], values[3][n]);
+            }
+            buffer.clear();
+            int size = encoder.writeTo(buffer);
+            assertEquals(size, SampleBlock.getSize(buffer));
+            assertTrue(SampleBlock.isIntact(buffer));
+            assertEquals(count, SampleBlock.getCount(buffer));
+            assertEquals(times[0], SampleBlock.getStartMs(buffer));
+            assertEquals(times[count - 1], SampleBlock.getEndMs(buffer));
+
+            decoder.decode(buffer, (1 << SampleBlock.COLUMNS) - 1);
+            assertEquals(count, decoder.count);
+            for (int n = 0; n < count; n++) {
+                assertEquals(times[n], decoder.times[n]);
+                for (int c = 0; c < SampleBlock.COLUMNS; c++) {
+                    assertSameBits(values[c][n], decoder.values[c][n]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reopenedFileContinuesOpenBlock() throws IOException {
+        File file = tempFile();
+        Meter meter = new Meter(2);
+        int total = SampleBlock.MAX_SAMPLES * 2 + 100;
+        long[] times = new long[total];
+        float[] power = new float[total];
+
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            for (int n = 0; n < total / 2; n++) {
+                meter.next();
+                times[n] = meter.time;
+                power[n] = meter.power;
+                blocks.append(meter.time, meter.voltage, meter.current, meter.power, (float) meter.energy);
+            }
+        }
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            assertEquals(times[total / 2 - 1], blocks.getLastTimeMs());
+            for (int n = total / 2; n < total; n++) {
+                meter.next();
+                times[n] = meter.time;
+                power[n] = meter.power;
+                blocks.append(meter.time, meter.voltage, meter.current, meter.power, (float) meter.energy);
+            }
+        }
+
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            assertEquals(3, blocks.getBlockCount());
+            int n = 0;
+            for (int block = 0; block < blocks.getBlockCount(); block++) {
+                SampleBlock.Decoder decoded = blocks.decode(block, 1 << SampleBlock.POWER);
+                for (int i = 0; i < decoded.count; i++, n++) {
+                    assertEquals(times[n], decoded.times[i]);
+                    assertSameBits(power[n], decoded.values[SampleBlock.POWER][i]);
+                }
+            }
+            assertEquals(total, n);
+        }
+    }
+
+    @Test
+    public void openBlockIsJournaledNotRewritten() throws IOException {
+        File file = tempFile();
+        Meter meter = new Meter(3);
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            for (int n = 0; n < SampleBlock.MAX_SAMPLES - 1; n++) {
+                meter.next();
+                blocks.append(meter.time, meter.voltage, meter.current, meter.power, (float) meter.energy);
+            }
+            // Counts buffered samples without writing them
+            long journaled = journal(file).length();
+            assertEquals(8 + (SampleBlock.MAX_SAMPLES - 1) * 24L, blocks.getSizeBytes());
+            assertEquals(journaled, journal(file).length());
+            blocks.flush();
+            // Every sample so far written once, to the journal; the file has just its header
+            assertEquals(8, file.length());
+            assertEquals((SampleBlock.MAX_SAMPLES - 1) * 24L, journal(file).length());
+
+            meter.next();
+            blocks.append(meter.time, meter.voltage, meter.current, meter.power, (float) meter.energy);
+            assertEquals(0, journal(file).length());
+            assertTrue(file.length() > 8);
+        }
+    }
+
+    @Test
+    public void crashWhileSealingLosesNoSamples() throws IOException {
+        File file = tempFile();
+        Meter meter = new Meter(3);
+        long[] times = new long[SampleBlock.MAX_SAMPLES];
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            for (int n = 0; n < SampleBlock.MAX_SAMPLES - 1; n++) {
+                meter.next();
+                times[n] = meter.time;
+                blocks.append(meter.time, meter.voltage, meter.current, meter.power, (float) meter.energy);
+            }
+        }
+        byte[] journaled = Files.readAllBytes(journal(file).toPath());
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            meter.next();
+            times[SampleBlock.MAX_SAMPLES - 1] = meter.time;
+            blocks.append(meter.time, meter.voltage, meter.current, meter.power, (float) meter.energy);
+        }
+
+        // Crash after the block was written, before the journal was emptied
+        Files.write(journal(file).toPath(), journaled);
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            assertEquals(1, blocks.getBlockCount());
+            assertEquals(SampleBlock.MAX_SAMPLES, blocks.decode(0, 0).count);
+            assertEquals(times[SampleBlock.MAX_SAMPLES - 1], blocks.getLastTimeMs());
+        }
+
+        // Crash while the block was written: flip a byte in its streams, as a torn write would
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(raw.length() - 10);
+            int b = raw.read();
+            raw.seek(raw.length() - 10);
+            raw.write(b ^ 0x55);
+        }
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            assertEquals(1, blocks.getBlockCount());
+            assertEquals(SampleBlock.MAX_SAMPLES - 1, blocks.decode(0, 0).count);
+            assertEquals(times[SampleBlock.MAX_SAMPLES - 2], blocks.getLastTimeMs());
+        }
+    }
+
+    @Test
+    public void aggregateMatchesFullScan() throws IOException {
+        File file = tempFile();
+        Meter meter = new Meter(4);
+        int total = 50_000;
+        long[] times = new long[total];
+        float[] voltage = new float[total];
+
+        SampleBlockFile.Aggregate aggregate = new SampleBlockFile.Aggregate();
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            for (int n = 0; n < total; n++) {
+                meter.next();
+                times[n] = meter.time;
+                voltage[n] = meter.voltage;
+                blocks.append(meter.time, meter.voltage, meter.current, meter.power, (float) meter.energy);
+            }
+
+            Random random = new Random(5);
+            for (int round = 0; round < 200; round++) {
+                long start = times[0] - 5000 + (long) (random.nextDouble() * (times[total - 1] - times[0]));
+                long end = start + (long) (random.nextDouble() * random.nextDouble() * (times[total - 1] - start + 5000));
+
+                long count = 0;
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                double sum = 0;
+                for (int n = 0; n < total; n++) {
+                    if (times[n] >= start && times[n] < end) {
+                        count++;
+                        min = Math.min(min, voltage[n]);
+                        max = Math.max(max, voltage[n]);
+                        sum += voltage[n];
+                    }
+                }
+
+                blocks.aggregate(start, end, SampleBlock.VOLTAGE, aggregate);
+                assertEquals(count, aggregate.count);
+                assertSameBits(min, aggregate.min);
+                assertSameBits(max, aggregate.max);
+                assertEquals(sum, aggregate.sum, 1e-9 * Math.abs(sum));
+                assertTrue(aggregate.blocksDecoded <= 2);
+            }
+
+            blocks.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, SampleBlock.VOLTAGE, aggregate);
+            assertEquals(total, aggregate.count);
+            assertEquals(0, aggregate.blocksDecoded);
+        }
+    }
+
+    @Test
+    public void unknownValuesAreLeftOutOfAggregates() throws IOException {
+        File file = tempFile();
+        Meter meter = new Meter(7);
+        int total = SampleBlock.MAX_SAMPLES * 3 + 100;
+        long known = 0;
+        double sum = 0;
+
+        SampleBlockFile.Aggregate aggregate = new SampleBlockFile.Aggregate();
+        try (SampleBlockFile blocks = new SampleBlockFile(file)) {
+            for (int n = 0; n < total; n++) {
+                meter.next();
+                // Imported history has no voltage; a few power readings are missing too
+                float power = n % 100 == 0 ? Float.NaN : meter.power;
+                if (!Float.isNaN(power)) {
+                    known++;
+                    sum += power;
+                }
+                blocks.append(meter.time, Float.NaN, meter.current, power, (float) meter.energy);
+            }
+
+            blocks.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, SampleBlock.POWER, aggregate);
+            assertEquals(blocks.getBlockCount(), aggregate.blocksSkipped);
+            assertEquals(known, aggregate.count);
+            assertEquals(sum, aggregate.sum, 1e-9 * sum);
+            assertEquals(sum / known, aggregate.getMean(), 1e-9);
+
+            // One decoded edge block, the rest from headers
+            blocks.aggregate(blocks.getBlockStartMs(0) + 1, Long.MAX_VALUE, SampleBlock.POWER, aggregate);
+            assertEquals(1, aggregate.blocksDecoded);
+            assertTrue(!Double.isNaN(aggregate.getMean()));
+
+            blocks.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, SampleBlock.VOLTAGE, aggregate);
+            assertEquals(0, aggregate.count);
+            assertTrue(Double.isNaN(aggregate.getMean()));
+        }
+    }
+
+    /**
+     * A day of 1 Hz samples: compressed blocks against raw 24-byte records
+     * (long time and four floats), on size and on the work a full-range
+     * aggregation does. {@link SampleBlockBenchmark} times the same scans.
+     */
+    @Test
+    public void compressesAndAggregatesFromHeaders() throws IOException {
+        int total = 86_400;
+        File blockFile = tempFile();
+
+        Meter meter = new Meter(6);
+        double sum = 0;
+        try (SampleBlockFile blocks = new SampleBlockFile(blockFile)) {
+            for (int n = 0; n < total; n++) {
+                meter.next();
+                sum += meter.power;
+                blocks.append(meter.time, meter.voltage, meter.current, meter.power, (float) meter.energy);
+            }
+        }
+
+        double ratio = (double) total * RAW_RECORD_SIZE / blockFile.length();
+        assertTrue("Compression ratio " + ratio, ratio >= 5);
+
+        SampleBlockFile.Aggregate aggregate = new SampleBlockFile.Aggregate();
+        try (SampleBlockFile blocks = new SampleBlockFile(blockFile)) {
+            double blockSum = 0;
+            for (int block = 0; block < blocks.getBlockCount(); block++) {
+                SampleBlock.Decoder decoded = blocks.decode(block, 1 << SampleBlock.POWER);
+                float[] power = decoded.values[SampleBlock.POWER];
+                for (int n = 0; n < decoded.count; n++) {
+                    blockSum += power[n];
+                }
+            }
+            assertEquals(sum, blockSum, 1e-9 * sum);
+
+            // The whole range is answered from headers without decoding a block
+            blocks.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, SampleBlock.POWER, aggregate);
+            assertEquals(blocks.getBlockCount(), aggregate.blocksSkipped);
+            assertEquals(0, aggregate.blocksDecoded);
+            assertEquals(total, aggregate.count);
+            assertEquals(sum, aggregate.sum, 1e-9 * sum);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.smartwattv2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Schedule parsing, tier splitting, billing cycles and re-pricing of the tariff engine.
+ */
+public class TariffEngineTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+    private static final double DELTA = 1e-9;
+
+    /** @param month 1-based month */
+    private static long time(TimeZone zone, int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long utc(int year, int month, int day, int hour) {
+        return time(UTC, year, month, day, hour, 0);
+    }
+
+    private static int slot(int hour, int minute) {
+        return (hour * 60 + minute) / TariffSchedule.SLOT_MINUTES;
+    }
+
+    @Test
+    public void parseResolvesRulesIntoSlots() {
+        TariffSchedule schedule = TariffSchedule.parse(
+                "base=9.50\n"
+                        + "# evening peak on weekdays\n"
+                        + "rate=mon-fri 17:00-21:00 14.20; rate=fri-sun 22:00-06:00 5\n"
+                        + "rate=hol 00:00-24:00 8\n"
+                        + "holiday=2026-12-25\nbilling=15\ncurrency=PHP");
+
+        double[] monday = schedule.getDayRates(Calendar.MONDAY - Calendar.SUNDAY);
+        assertEquals(9.50, monday[slot(16, 45)], DELTA);
+        assertEquals(14.20, monday[slot(17, 0)], DELTA);
+        assertEquals(14.20, monday[slot(20, 45)], DELTA);
+        assertEquals(9.50, monday[slot(21, 0)], DELTA);
+        assertEquals(9.50, monday[slot(23, 0)], DELTA);
+
+        // The overnight period covers both ends of each listed day
+        double[] friday = schedule.getDayRates(Calendar.FRIDAY - Calendar.SUNDAY);
+        assertEquals(5, friday[slot(2, 0)], DELTA);
+        assertEquals(14.20, friday[slot(20, 0)], DELTA);
+        assertEquals(5, friday[slot(23, 45)], DELTA);
+        double[] sunday = schedule.getDayRates(Calendar.SUNDAY - Calendar.SUNDAY);
+        assertEquals(5, sunday[slot(5, 45)], DELTA);
+        assertEquals(9.50, sunday[slot(6, 0)], DELTA);
+
+        assertEquals(8, schedule.getDayRates(TariffSchedule.HOLIDAY)[slot(18, 0)], DELTA);
+        assertTrue(schedule.isHoliday(TariffSchedule.dateKey(2026, 12, 25)));
+        assertFalse(schedule.isHoliday(TariffSchedule.dateKey(2026, 12, 24)));
+        assertEquals(15, schedule.getBillingDay());
+        assertEquals("PHP 12.30", schedule.formatCost(12.3));
+    }
+
+    @Test
+    public void parseRejectsInvalidRules() {
+        String[] invalid = {
+                "base", "base=-1", "base=abc", "colour=red", "billing=0", "billing=32",
+                "rate=mon 17:10-18:00 5", "rate=mon 17:00 5", "rate=funday 17:00-18:00 5",
+                "rate=mon 17:00-25:00 5", "tier=100", "tier=-5:1", "holiday=2026-12",
+        };
+        for (String spec : invalid) {
+            try {
+                TariffSchedule.parse(spec);
+                fail("Accepted '" + spec + "'");
+            } catch (IllegalArgumentException expected) {
+                // Reported to the user as an invalid schedule
+            }
+        }
+    }
+
+    @Test
+    public void tiersSplitDeltasAtTheirThresholds() {
+        // Listed out of order on purpose
+        TariffSchedule schedule = TariffSchedule.parse("base=10; tier=100:2; tier=50:1");
+
+        assertEquals(200, schedule.cost(10, 0, 20), DELTA);
+        // 10 kWh below the first tier, 10 above it
+        assertEquals(210, schedule.cost(10, 40, 20), DELTA);
+        // Crosses the second tier: 20 kWh above the first, 10 above the second
+        assertEquals(240, schedule.cost(10, 90, 20), DELTA);
+        assertEquals(260, schedule.cost(10, 150, 20), DELTA);
+
+        // Many small deltas cost the same as one large one
+        TariffEngine engine = new TariffEngine(schedule, UTC);
+        long time = utc(2026, 5, 10, 0);
+        double cost = 0;
+        for (int n = 0; n < 1500; n++) {
+            cost += engine.addEnergy(time + n * 1000L, 0.1);
+        }
+        assertEquals(150, engine.getCycleEnergyKwh(), 1e-6);
+        assertEquals(1500 + 100 * 1 + 50 * 2, cost, 1e-6);
+        assertEquals(cost, engine.getCycleCost(), 1e-6);
+    }
+
+    @Test
+    public void billingDayIsClampedInShortMonths() {
+        TariffEngine engine = new TariffEngine(TariffSchedule.parse("base=10; billing=31"), UTC);
+
+        engine.addEnergy(utc(2026, 2, 27, 12), 1);
+        assertEquals(1, engine.getCycleEnergyKwh(), DELTA);
+        // February has no 31st, so the cycle starts on the 28th
+        engine.addEnergy(utc(2026, 2, 28, 0), 1);
+        assertEquals(1, engine.getCycleEnergyKwh(), DELTA);
+        engine.addEnergy(utc(2026, 3, 30, 23), 1);
+        assertEquals(2, engine.getCycleEnergyKwh(), DELTA);
+        engine.addEnergy(utc(2026, 3, 31, 0), 1);
+        assertEquals(1, engine.getCycleEnergyKwh(), DELTA);
+        engine.addEnergy(utc(2026, 4, 29, 23), 1);
+        assertEquals(2, engine.getCycleEnergyKwh(), DELTA);
+        engine.addEnergy(utc(2026, 4, 30, 0), 1);
+        assertEquals(1, engine.getCycleEnergyKwh(), DELTA);
+
+        // Billing on the 29th in a leap year February
+        engine = new TariffEngine(TariffSchedule.parse("base=10; billing=29"), UTC);
+        engine.addEnergy(utc(2028, 2, 28, 23), 1);
+        engine.addEnergy(utc(2028, 2, 29, 0), 1);
+        assertEquals(1, engine.getCycleEnergyKwh(), DELTA);
+        engine.addEnergy(utc(2028, 3, 28, 23), 1);
+        assertEquals(2, engine.getCycleEnergyKwh(), DELTA);
+    }
+
+    @Test
+    public void dstDaysKeepPeriodsAtWallClockTimes() {
+        TariffSchedule schedule = TariffSchedule.parse(
+                "base=10; rate=all 01:00-02:00 5; rate=all 17:00-21:00 20; rate=all 23:45-24:00 30");
+        TariffEngine engine = new TariffEngine(schedule, NEW_YORK);
+
+        // 2026-03-08 has 23 hours (92 slots)
+        assertEquals(10, engine.addEnergy(time(NEW_YORK, 2026, 3, 8, 16, 45), 1), DELTA);
+        assertEquals(20, engine.addEnergy(time(NEW_YORK, 2026, 3, 8, 17, 15), 1), DELTA);
+        assertEquals(30, engine.addEnergy(time(NEW_YORK, 2026, 3, 8, 23, 50), 1), DELTA);
+
+        // 2026-11-01 has 25 hours (100 slots); 01:30 happens twice
+        long firstHalfPast = time(NEW_YORK, 2026, 11, 1, 0, 30) + 60 * 60 * 1000L;
+        assertEquals(5, engine.addEnergy(firstHalfPast, 1), DELTA);
+        assertEquals(5, engine.addEnergy(firstHalfPast + 60 * 60 * 1000L, 1), DELTA);
+        assertEquals(10, engine.addEnergy(time(NEW_YORK, 2026, 11, 1, 2, 15), 1), DELTA);
+        assertEquals(20, engine.addEnergy(time(NEW_YORK, 2026, 11, 1, 20, 30), 1), DELTA);
+        assertEquals(10, engine.addEnergy(time(NEW_YORK, 2026, 11, 1, 21, 0), 1), DELTA);
+        assertEquals(30, engine.addEnergy(time(NEW_YORK, 2026, 11, 1, 23, 50), 1), DELTA);
+        assertEquals(5, engine.addEnergy(time(NEW_YORK, 2026, 11, 2, 1, 0), 1), DELTA);
+
+        // Re-pricing the cycle gives the same total
+        double cost = engine.getCycleCost();
+        engine.setSchedule(schedule);
+        assertEquals(cost, engine.getCycleCost(), DELTA);
+    }
+
+    @Test
+    public void energyOverAGapIsSpreadAcrossItsSlots() {
+        // Slots follow local time, 5:45 off UTC here
+        TimeZone kathmandu = TimeZone.getTimeZone("Asia/Kathmandu");
+        TariffEngine engine = new TariffEngine(TariffSchedule.parse("base=10; rate=all 17:00-21:00 20"), kathmandu);
+        long start = time(kathmandu, 2026, 5, 4, 16, 30);
+        long end = time(kathmandu, 2026, 5, 4, 17, 30);
+        assertEquals(10 + 20, engine.addEnergy(start, end, 2), DELTA);
+        assertEquals(2, engine.getCycleEnergyKwh(), DELTA);
+
+        // Over two days, a sixth of it in the peaks
+        engine.addEnergy(end, end + 2 * 24 * 3_600_000L, 48);
+        assertEquals(50, engine.getCycleEnergyKwh(), DELTA);
+        assertEquals(30 + 40 * 10 + 8 * 20, engine.getCycleCost(), 1e-6);
+    }
+
+    @Test
+    public void newScheduleRepricesTheCycle() {
+        TariffEngine engine = new TariffEngine(TariffSchedule.parse("base=10"), UTC);
+        engine.addEnergy(utc(2026, 5, 4, 10), 2);
+        engine.addEnergy(utc(2026, 5, 4, 18), 3);
+        assertEquals(50, engine.getCycleCost(), DELTA);
+
+        engine.setSchedule(TariffSchedule.parse("base=10; rate=all 17:00-21:00 20; tier=4:1"));
+        assertEquals(5, engine.getCycleEnergyKwh(), DELTA);
+        assertEquals(2 * 10 + 3 * 20 + 1, engine.getCycleCost(), DELTA);
+
+        // Later samples are priced with the new schedule too
+        assertEquals(2 * 20 + 2, engine.addEnergy(utc(2026, 5, 4, 19), 2), DELTA);
+    }
+
+    @Test
+    public void billingDayChangeKeepsEnergyOfTheNewCycle() {
+        TariffEngine engine = new TariffEngine(TariffSchedule.parse("base=10; billing=1"), UTC);
+        for (int day = 1; day <= 20; day++) {
+            engine.addEnergy(utc(2026, 5, day, 12), 1);
+        }
+        assertEquals(20, engine.getCycleEnergyKwh(), DELTA);
+
+        // Cycle from 2026-04-25: everything recorded since May 1st is still in it
+        engine.setSchedule(TariffSchedule.parse("base=10; billing=25"));
+        assertEquals(20, engine.getCycleEnergyKwh(), DELTA);
+        assertEquals(200, engine.getCycleCost(), DELTA);
+        engine.addEnergy(utc(2026, 5, 24, 12), 1);
+        assertEquals(21, engine.getCycleEnergyKwh(), DELTA);
+
+        // Cycle from 2026-05-15: May 1st to 14th belong to the previous cycle
+        engine.setSchedule(TariffSchedule.parse("base=10; billing=15"));
+        assertEquals(7, engine.getCycleEnergyKwh(), DELTA);
+        assertEquals(70, engine.getCycleCost(), DELTA);
+        engine.addEnergy(utc(2026, 6, 14, 23), 1);
+        assertEquals(8, engine.getCycleEnergyKwh(), DELTA);
+        engine.addEnergy(utc(2026, 6, 15, 0), 1);
+        assertEquals(1, engine.getCycleEnergyKwh(), DELTA);
+    }
+
+    @Test
+    public void savedStateRestoresTheCycle() throws IOException {
+        TariffSchedule schedule = TariffSchedule.parse("base=10; rate=all 17:00-21:00 20; billing=5");
+        TariffEngine engine = new TariffEngine(schedule, UTC);
+        engine.addEnergy(utc(2026, 5, 6, 10), 1);
+        engine.addEnergy(utc(2026, 5, 9, 18), 2);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        engine.writeState(new DataOutputStream(bytes));
+        TariffEngine restored = new TariffEngine(schedule, UTC);
+        restored.readState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(3, restored.getCycleEnergyKwh(), DELTA);
+        assertEquals(50, restored.getCycleCost(), DELTA);
+
+        // Without a sample since the restore, the latest recorded slot picks the new cycle
+        restored.setSchedule(TariffSchedule.parse("base=10; rate=all 17:00-21:00 20; billing=8"));
+        assertEquals(2, restored.getCycleEnergyKwh(), DELTA);
+        assertEquals(40, restored.getCycleCost(), DELTA);
+        restored.addEnergy(utc(2026, 5, 10, 18), 1);
+        assertEquals(3, restored.getCycleEnergyKwh(), DELTA);
+    }
+}
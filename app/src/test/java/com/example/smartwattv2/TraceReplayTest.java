@@ -0,0 +1,310 @@
+package com.example.smartwattv2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays recorded traces through the real {@link MeterPipeline} on a virtual clock.
+ */
+public class TraceReplayTest {
+
+    private static final long START_WALL_MS = 1_700_000_000_000L;
+    private static final long START_MONO_MS = 3_600_000L;
+    private static final long INTERVAL_MS = 1000;
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/Berlin");
+
+    /** Collects every pipeline event as text, so two runs can be compared exactly. */
+    private static class EventLog implements MeterPipeline.Listener {
+        final List<String> events = new ArrayList<>();
+        int consumptionAlerts;
+        int costAlerts;
+        int warnings;
+        int snapshots;
+        UsageSnapshot.Reading lastSnapshot;
+
+        @Override
+        public void onReading(MeterPipeline.Reading r) {
+            events.add(String.format(Locale.US, "reading %d %.3f %.6f %.6f %d",
+                    r.timestampMs, r.powerKw, r.energyKwh, r.cycleCost, r.integratorStatus));
+        }
+
+        @Override
+        public void onConsumptionAlert(double energyKwh, float limitKwh) {
+            consumptionAlerts++;
+            events.add("consumption " + energyKwh + " " + limitKwh);
+        }
+
+        @Override
+        public void onCostAlert(String cost, String costLimit) {
+            costAlerts++;
+            events.add("cost " + cost + " " + costLimit);
+        }
+
+        @Override
+        public void onWarning(String warning) {
+            if (warning != null) {
+                warnings++;
+            }
+            events.add("warning " + warning);
+        }
+
+        @Override
+        public void onSnapshotUpdated(UsageSnapshot.Reading snapshot) {
+            snapshots++;
+            lastSnapshot = snapshot;
+            events.add("snapshot " + snapshot.timestampMs + " " + snapshot.flags);
+        }
+
+        @Override
+        public void onHistoryError(IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class Factory implements TraceReplayer.PipelineFactory {
+        final EventLog log = new EventLog();
+        LoadDisaggregator loadDisaggregator;
+        HistoryStore historyStore;
+        Executor historyExecutor;
+        UsageSnapshot snapshot;
+
+        @Override
+        public MeterPipeline create(MeterPipeline.Clock clock, TimeZone zone) {
+            TariffSchedule schedule = TariffSchedule.parse(
+                    "base=0.20\nrate=mon-fri 17:00-21:00 0.45\ntier=2:0.05");
+            MeterPipeline pipeline = new MeterPipeline(clock,
+                    new EnergyIntegrator(INTERVAL_MS, 0.01, 0, 25.0),
+                    new TariffEngine(schedule, zone), log);
+            pipeline.setLimits(1.5f, 0.05f);
+            pipeline.setLoadDisaggregator(loadDisaggregator);
+            pipeline.setHistoryStore(historyStore, historyExecutor);
+            pipeline.setSnapshot(snapshot);
+            return pipeline;
+        }
+    }
+
+    private static String response(double v, double i, double p, double e) {
+        return String.format(Locale.US, "<html><div id='data'>%.2f,%.3f,%.3f,%.2f</div></html>", v, i, p, e);
+    }
+
+    /**
+     * Writes {@code count} samples with jittered arrivals, a few garbled and
+     * failed responses, a long gap and a meter counter reset.
+     */
+    private static File writeTrace(int count, long seed) throws IOException {
+        File file = File.createTempFile("trace", ".swt");
+        file.deleteOnExit();
+        Random random = new Random(seed);
+
+        try (TraceRecorder recorder = new TraceRecorder(file, START_WALL_MS, START_MONO_MS, ZONE)) {
+            long wall = START_WALL_MS;
+            long mono = START_MONO_MS;
+            double counter = 1.4;
+            double power = 2.0;
+            for (int n = 0; n < count; n++) {
+                long step = INTERVAL_MS + random.nextInt(200) - 100;
+                if (n == count / 2) {
+                    step = 30 * INTERVAL_MS; // Sampling gap
+                }
+                wall += step;
+                mono += step;
+                power = Math.max(0, Math.min(10, power + random.nextGaussian() * 0.2));
+                counter += power * step / 3_600_000.0;
+                if (n == count / 3) {
+                    counter = 0; // Meter rebooted
+                }
+
+                if (n % 97 == 13) {
+                    recorder.record(wall, mono, 200, "<html>garbage</html>");
+                } else if (n % 89 == 7) {
+                    recorder.record(wall, mono, 503, "Service Unavailable");
+                } else {
+                    recorder.record(wall, mono, 200, response(230, power / 0.23, power, counter));
+                }
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void roundTripPreservesRecords() throws IOException {
+        File file = File.createTempFile("trace", ".swt");
+        file.deleteOnExit();
+        try (TraceRecorder recorder = new TraceRecorder(file, START_WALL_MS, START_MONO_MS, ZONE)) {
+            recorder.record(START_WALL_MS + 1000, START_MONO_MS + 1000, 200, "first");
+            // Wall clock stepped back, monotonic clock did not
+            recorder.record(START_WALL_MS - 5000, START_MONO_MS + 2000, 500, "sec\u00f6nd");
+        }
+
+        try (TraceReader reader = new TraceReader(file)) {
+            assertEquals(ZONE.getID(), reader.getTimeZone().getID());
+            assertEquals(START_WALL_MS, reader.getStartWallMs());
+            assertEquals(START_MONO_MS, reader.getStartMonoMs());
+
+            assertTrue(reader.next());
+            assertEquals(START_WALL_MS + 1000, reader.wallMs);
+            assertEquals(START_MONO_MS + 1000, reader.monoMs);
+            assertEquals(200, reader.statusCode);
+            assertEquals("first", reader.response);
+
+            assertTrue(reader.next());
+            assertEquals(START_WALL_MS - 5000, reader.wallMs);
+            assertEquals(START_MONO_MS + 2000, reader.monoMs);
+            assertEquals(500, reader.statusCode);
+            assertEquals("sec\u00f6nd", reader.response);
+
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void replayMatchesAcrossSpeeds() throws Exception {
+        File file = writeTrace(600, 42);
+
+        Factory fast = new Factory();
+        TraceReplayer.Result fastResult = new TraceReplayer(file).replay(fast, 0);
+        Factory paced = new Factory();
+        TraceReplayer.Result pacedResult = new TraceReplayer(file).replay(paced, 1000);
+
+        assertEquals(600, fastResult.records);
+        assertEquals(fastResult.records, fastResult.readings + fastResult.parseErrors + fastResult.serverErrors);
+        assertTrue(fastResult.parseErrors > 0);
+        assertTrue(fastResult.serverErrors > 0);
+        assertEquals(1, fast.log.consumptionAlerts);
+        assertEquals(1, fast.log.costAlerts);
+
+        assertEquals(fastResult.readings, pacedResult.readings);
+        assertEquals(fastResult.parseErrors, pacedResult.parseErrors);
+        assertEquals(fastResult.serverErrors, pacedResult.serverErrors);
+        assertEquals(fast.log.events, paced.log.events);
+    }
+
+    @Test
+    public void replayFeedsHistorySnapshotAndDisaggregator() throws Exception {
+        File file = writeTrace(600, 42);
+        File directory = Files.createTempDirectory("history").toFile();
+        directory.deleteOnExit();
+        File snapshotFile = File.createTempFile("snapshot", ".bin");
+        snapshotFile.deleteOnExit();
+
+        Factory factory = new Factory();
+        factory.historyStore = new HistoryStore(directory);
+        ExecutorService historyExecutor = Executors.newSingleThreadExecutor();
+        factory.historyExecutor = historyExecutor;
+        factory.snapshot = UsageSnapshot.open(snapshotFile);
+        factory.loadDisaggregator = new LoadDisaggregator();
+        factory.loadDisaggregator.start();
+        TraceReplayer.Result result = new TraceReplayer(file).replay(factory, 0);
+        historyExecutor.shutdown();
+        assertTrue(historyExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+        SampleBlockFile.Aggregate power = new SampleBlockFile.Aggregate();
+        factory.historyStore.aggregate(0, Long.MAX_VALUE, SampleBlock.POWER, power);
+        assertEquals(result.readings, power.count);
+
+        // The last reading is in the snapshot; surfaces refreshed about every 5 s of trace time
+        UsageSnapshot.Reading last = new UsageSnapshot.Reading();
+        assertTrue(UsageSnapshot.open(snapshotFile).read(last));
+        assertEquals(factory.historyStore.getLastTimeMs(), last.timestampMs);
+        assertEquals(UsageSnapshot.FLAG_LIMIT_EXCEEDED | UsageSnapshot.FLAG_COST_EXCEEDED, last.flags);
+        long expected = result.traceDurationMs / MeterPipeline.SURFACE_UPDATE_INTERVAL_MS;
+        assertTrue(factory.log.snapshots >= expected / 2 && factory.log.snapshots <= expected + 3);
+
+        // Alerts fire once, the banner text comes with every reading over a limit
+        assertEquals(1, factory.log.consumptionAlerts);
+        assertTrue(factory.log.warnings > 100);
+
+        for (int wait = 0; wait < 500 && factory.loadDisaggregator.getAppliances().isEmpty(); wait++) {
+            Thread.sleep(10);
+        }
+        factory.loadDisaggregator.stop();
+        assertFalse(factory.loadDisaggregator.getAppliances().isEmpty());
+    }
+
+    @Test
+    public void replayIsPacedBySpeed() throws Exception {
+        File file = writeTrace(300, 7);
+        TraceReplayer.Result result = new TraceReplayer(file).replay(new Factory(), 1000);
+
+        // About 5 minutes of trace at 1000x is about 330 ms of wall time
+        long expectedNanos = result.traceDurationMs * 1_000_000L / 1000;
+        assertTrue(result.replayNanos >= expectedNanos);
+        assertTrue(result.replayNanos < expectedNanos + 2_000_000_000L);
+    }
+
+    @Test
+    public void truncatedTraceReplaysPrefix() throws Exception {
+        File file = writeTrace(600, 42);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        int records = 0;
+        try (TraceReader reader = new TraceReader(
+                new ByteArrayInputStream(bytes, 0, bytes.length * 2 / 3))) {
+            while (reader.next()) {
+                assertTrue(reader.monoMs > START_MONO_MS);
+                records++;
+            }
+        }
+        assertTrue(records > 0);
+        assertTrue(records < 600);
+    }
+
+    @Test
+    public void energyUsedWhileClosedIsPricedOnRestart() throws IOException {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        TariffSchedule schedule = TariffSchedule.parse("base=0.20\nrate=all 17:00-21:00 0.45");
+        long wall = 1_700_064_000_000L - 10 * INTERVAL_MS; // Last sample at 2023-11-15 16:00 UTC
+        long mono = START_MONO_MS;
+        double counter = 12.34;
+
+        MeterPipeline.ArrivalClock clock = new MeterPipeline.ArrivalClock();
+        TariffEngine tariff = new TariffEngine(schedule, utc);
+        MeterPipeline pipeline = new MeterPipeline(clock, new EnergyIntegrator(INTERVAL_MS, 0.01, 0, 25.0),
+                tariff, new EventLog());
+        for (int n = 0; n < 10; n++) {
+            clock.set(wall += INTERVAL_MS, mono += INTERVAL_MS);
+            pipeline.ingest(response(230, 8.7, 2.0, counter += 0.01));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        tariff.writeState(out);
+        pipeline.writeState(out);
+        double energyBefore = tariff.getCycleEnergyKwh();
+        double costBefore = tariff.getCycleCost();
+
+        // Two hours at 2 kW while closed, across the start of the 17:00 peak, after a reboot
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        tariff = new TariffEngine(schedule, utc);
+        tariff.readState(in);
+        pipeline = new MeterPipeline(clock, new EnergyIntegrator(INTERVAL_MS, 0.01, 0, 25.0), tariff, new EventLog());
+        pipeline.readState(in);
+        clock.set(wall + 2 * 3_600_000L, 5000);
+        MeterPipeline.Reading reading = pipeline.ingest(response(230, 8.7, 2.0, counter + 4));
+
+        assertTrue((reading.integratorStatus & EnergyIntegrator.STATUS_GAP) != 0);
+        assertEquals(counter + 4, reading.energyKwh, 1e-9);
+        assertEquals(energyBefore + 4, tariff.getCycleEnergyKwh(), 1e-9);
+        // An hour at the base rate, an hour at the peak rate
+        assertEquals(costBefore + 2 * 0.20 + 2 * 0.45, tariff.getCycleCost(), 1e-9);
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.smartwattv2;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips, damaged files and concurrent readers of the memory-mapped
+ * usage snapshot.
+ */
+public class UsageSnapshotTest {
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("snapshot", ".bin");
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    /** Writes a reading whose fields can all be checked against {@code n}. */
+    private static void write(UsageSnapshot snapshot, int n) {
+        snapshot.write(1_700_000_000_000L + n, 230 + n % 10, n % 1000 / 100f, n % 3000 / 1000f,
+                n / 10f, 500, n / 100f, 200, n & 3);
+    }
+
+    private static void assertReading(int n, UsageSnapshot.Reading reading) {
+        assertEquals(1_700_000_000_000L + n, reading.timestampMs);
+        assertEquals(230 + n % 10, reading.voltage, 0f);
+        assertEquals(n % 1000 / 100f, reading.current, 0f);
+        assertEquals(n % 3000 / 1000f, reading.powerKw, 0f);
+        assertEquals(n / 10f, reading.energyKwh, 0f);
+        assertEquals(500, reading.limitKwh, 0f);
+        assertEquals(n / 100f, reading.cost, 0f);
+        assertEquals(200, reading.costLimit, 0f);
+        assertEquals(n & 3, reading.flags);
+    }
+
+    @Test
+    public void newFileHasNoReading() throws IOException {
+        UsageSnapshot snapshot = UsageSnapshot.open(tempFile());
+        assertFalse(snapshot.read(new UsageSnapshot.Reading()));
+    }
+
+    @Test
+    public void readingSurvivesReopening() throws IOException {
+        File file = tempFile();
+        write(UsageSnapshot.open(file), 1234);
+
+        UsageSnapshot.Reading reading = new UsageSnapshot.Reading();
+        assertTrue(UsageSnapshot.open(file).read(reading));
+        assertReading(1234, reading);
+    }
+
+    @Test
+    public void damagedPayloadIsNotRead() throws IOException {
+        File file = tempFile();
+        UsageSnapshot snapshot = UsageSnapshot.open(file);
+        write(snapshot, 42);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(24);
+            raf.writeInt(0x12345678);
+        }
+
+        assertFalse(UsageSnapshot.open(file).read(new UsageSnapshot.Reading()));
+        // The next write makes it readable again
+        write(snapshot, 43);
+        UsageSnapshot.Reading reading = new UsageSnapshot.Reading();
+        assertTrue(snapshot.read(reading));
+        assertReading(43, reading);
+    }
+
+    @Test
+    public void readerOnOtherMappingNeverSeesMixedReadings() throws Exception {
+        File file = tempFile();
+        UsageSnapshot writer = UsageSnapshot.open(file);
+        // A separate mapping stands in for the widget or tile in another process
+        UsageSnapshot reader = UsageSnapshot.open(file);
+        write(writer, 0);
+
+        int writes = 200_000;
+        Thread writerThread = new Thread(() -> {
+            for (int n = 1; n <= writes; n++) {
+                write(writer, n);
+            }
+        });
+        writerThread.start();
+
+        UsageSnapshot.Reading reading = new UsageSnapshot.Reading();
+        long last = -1;
+        int reads = 0;
+        while (writerThread.isAlive() || reads == 0) {
+            if (reader.read(reading)) {
+                assertReading((int) (reading.timestampMs - 1_700_000_000_000L), reading);
+                assertTrue(reading.timestampMs >= last);
+                last = reading.timestampMs;
+                reads++;
+            }
+        }
+        writerThread.join();
+
+        assertTrue(reader.read(reading));
+        assertReading(writes, reading);
+    }
+}